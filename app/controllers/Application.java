@@ -1,10 +1,14 @@
 package controllers;
 
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.CacheStats;
 import play.libs.Json;
 import play.mvc.Controller;
 import play.mvc.Result;
 import services.DHTService;
+import services.kademlia.LookupMetrics;
+import services.kademlia.StoredKeysWalker;
+import services.videos.VideoIndexCache;
 import utils.StorageConfiguration;
 import utils.StoragePaths;
 import views.html.*;
@@ -39,9 +43,49 @@ public class Application extends Controller {
                 .put("free", StoragePaths.getVideosStoragePath().toFile().getUsableSpace())
                 .put("total", StoragePaths.getVideosStoragePath().toFile().getTotalSpace()));
 
+        LookupMetrics lookups = dht.getLookupMetrics();
+        ObjectNode lookupInfo = Json.newObject()
+                .put("count", lookups.getLookupCount())
+                .put("timedOut", lookups.getTimedOutCount())
+                .put("avgHops", lookups.getAverageHops())
+                .put("avgMessages", lookups.getAverageMessages())
+                .put("avgFailures", lookups.getAverageFailures())
+                .put("avgTime", lookups.getAverageTime());
+        lookupInfo.set("hops", Json.toJson(lookups.getHopHistogram()));
+        ret.set("lookups", lookupInfo);
+
+        ret.set("reads", Json.newObject()
+                .put("hedged", dht.getHedgedReadCount())
+                .put("hedgeWins", dht.getHedgeWinCount()));
+
+        ret.set("republish", walkerInformation(dht.getPublishWalker()));
+        ret.set("purge", walkerInformation(dht.getPurgeWalker()));
+
+        VideoIndexCache indexCache = dht.getVideoIndexCache();
+        ObjectNode indexCacheInfo = Json.newObject().put("size", indexCache.size());
+        indexCacheInfo.set("indexes", cacheStatsInformation(indexCache.getIndexStats()));
+        indexCacheInfo.set("schemas", cacheStatsInformation(indexCache.getSchemaStats()));
+        ret.set("indexCache", indexCacheInfo);
+
         return ok(ret);
     }
 
+    private static ObjectNode walkerInformation(StoredKeysWalker walker) {
+        return Json.newObject()
+                .put("running", walker.isRunning())
+                .put("processed", walker.getProcessed())
+                .put("failed", walker.getFailed())
+                .put("total", walker.getTotal())
+                .put("startedAt", walker.getStartedAt());
+    }
+
+    private static ObjectNode cacheStatsInformation(CacheStats stats) {
+        return Json.newObject()
+                .put("hits", stats.hitCount())
+                .put("misses", stats.missCount())
+                .put("evictions", stats.evictionCount());
+    }
+
     public Result checkRegistration(String key) {
         StorageConfiguration.load();
         if (key.equals(StorageConfiguration.REGISTRATION_KEY)) {
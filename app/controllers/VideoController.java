@@ -15,14 +15,17 @@ import services.DHTService;
 import services.kademlia.BlockNotFoundException;
 import services.kademlia.KadKey;
 import services.kademlia.KademliaOperationException;
+import services.videos.VideoBlockReader;
+import services.videos.VideoBlockSource;
 import services.videos.VideoIndex;
-import services.videos.VideoInputStream;
 import services.videos.VideoResolutionIndex;
+import utils.StorageConfiguration;
 import utils.VideoTokenManager;
 import utils.security.AccessTokenManager;
 
 import javax.inject.Inject;
 import java.io.IOException;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 
@@ -58,7 +61,7 @@ public class VideoController extends Controller {
             }
 
             try {
-                VideoIndex vIndex = dht.getVideoIndex(key, false);
+                VideoIndex vIndex = dht.getVideoIndex(key);
 
                 KadKey prevKey = vIndex.getPreviewBlock();
 
@@ -103,13 +106,12 @@ public class VideoController extends Controller {
             }
 
             try {
-                VideoIndex vIndex = dht.getVideoIndex(key, false);
+                VideoIndex vIndex = dht.getVideoIndex(key);
 
                 KadKey schemaKey = vIndex.getSchemaBlock();
 
                 if (!schemaKey.equals(KadKey.zero())) {
-                    byte[] schemaBytes = dht.readBlockFromDHT(schemaKey);
-                    JsonNode json = Json.parse(new String(schemaBytes));
+                    JsonNode json = dht.getVideoSchema(vIndex);
 
                     return ok(json).withHeader(ACCESS_CONTROL_ALLOW_ORIGIN, "*");
                 } else {
@@ -151,13 +153,12 @@ public class VideoController extends Controller {
             }
 
             try {
-                VideoIndex vIndex = dht.getVideoIndex(key, true);
+                VideoIndex vIndex = dht.getVideoIndex(key);
 
                 KadKey schemaKey = vIndex.getSchemaBlock();
 
                 if (!schemaKey.equals(KadKey.zero())) {
-                    byte[] schemaBytes = dht.readBlockFromDHT(schemaKey);
-                    JsonNode json = Json.parse(new String(schemaBytes));
+                    JsonNode json = dht.getVideoSchema(vIndex);
 
                     double duration = json.get("duration").asDouble();
                     String resolutions = "";
@@ -222,7 +223,7 @@ public class VideoController extends Controller {
             }
 
             try {
-                VideoIndex vIndex = dht.getVideoIndex(key, true);
+                VideoIndex vIndex = dht.getVideoIndex(key);
 
                 dht.eraseVideoFromStorage(key, vIndex);
 
@@ -259,7 +260,7 @@ public class VideoController extends Controller {
                 return notFound("Invalid kad_key").withHeader(ACCESS_CONTROL_ALLOW_ORIGIN, "*");
             }
             try {
-                VideoIndex vIndex = dht.getVideoIndex(key, true);
+                VideoIndex vIndex = dht.getVideoIndex(key);
                 VideoResolutionIndex res = vIndex.findResolution(resolution);
 
                 if (res == null) {
@@ -270,9 +271,9 @@ public class VideoController extends Controller {
                     }
                 }
 
-                VideoInputStream stream = new VideoInputStream(dht, vIndex.getFixedBlockSize(), res.getMp4Blocks());
+                VideoBlockReader reader = new VideoBlockReader(dht, vIndex.getFixedBlockSize(), res.getMp4Blocks(), res.getMp4Size(), StorageConfiguration.STREAM_READ_AHEAD_BLOCKS);
 
-                return RangeResults.ofStream(request, stream, stream.length()).withHeader(ACCESS_CONTROL_ALLOW_ORIGIN, "*").withHeader(CONTENT_TYPE, "video/mp4");
+                return streamVideoFile(request, reader, "video/mp4").withHeader(ACCESS_CONTROL_ALLOW_ORIGIN, "*");
 
             } catch (BlockNotFoundException ex) {
                 return notFound().withHeader(ACCESS_CONTROL_ALLOW_ORIGIN, "*");
@@ -314,7 +315,7 @@ public class VideoController extends Controller {
                 return notFound("Invalid kad_key").withHeader(ACCESS_CONTROL_ALLOW_ORIGIN, "*");
             }
             try {
-                VideoIndex vIndex = dht.getVideoIndex(key, true);
+                VideoIndex vIndex = dht.getVideoIndex(key);
                 VideoResolutionIndex res = vIndex.findResolution(resolution);
 
                 if (res == null) {
@@ -329,9 +330,9 @@ public class VideoController extends Controller {
                     return notFound("HLS file not found").withHeader(ACCESS_CONTROL_ALLOW_ORIGIN, "*");
                 }
 
-                VideoInputStream stream = new VideoInputStream(dht, vIndex.getFixedBlockSize(), res.getHlsBlocks().get(file));
+                VideoBlockReader reader = new VideoBlockReader(dht, vIndex.getFixedBlockSize(), res.getHlsBlocks().get(file), res.getHlsSize(file), StorageConfiguration.STREAM_READ_AHEAD_BLOCKS);
 
-                return RangeResults.ofStream(request, stream, stream.length()).withHeader(CONTENT_TYPE, contentType).withHeader(ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+                return streamVideoFile(request, reader, contentType).withHeader(ACCESS_CONTROL_ALLOW_ORIGIN, "*");
             } catch (BlockNotFoundException ex) {
                 return notFound().withHeader(ACCESS_CONTROL_ALLOW_ORIGIN, "*");
             } catch (InterruptedException | KademliaOperationException | IOException ex) {
@@ -340,4 +341,70 @@ public class VideoController extends Controller {
             }
         }, ec.current());
     }
-}
\ No newline at end of file
+
+    /**
+     * Sends a video file stored in the DHT, block by block, honoring the request byte range.
+     * RangeResults reads and discards every byte before the range, so single ranges (what players
+     * send when seeking) are served here, starting directly at the block containing the first byte.
+     */
+    private Result streamVideoFile(Http.Request request, VideoBlockReader reader, String contentType) {
+        long length = reader.length();
+        long[] range = parseSingleRange(request.getHeaders().get(RANGE), length);
+
+        if (range == null) {
+            // No range, multiple ranges or unsatisfiable range
+            return RangeResults.ofSource(request, length, VideoBlockSource.of(reader), null, contentType);
+        }
+
+        long rangeLength = range[1] - range[0] + 1;
+
+        return status(PARTIAL_CONTENT).streamed(VideoBlockSource.of(reader, range[0], range[1]), Optional.of(rangeLength), Optional.of(contentType))
+                .withHeader(CONTENT_RANGE, "bytes " + range[0] + "-" + range[1] + "/" + length)
+                .withHeader(ACCEPT_RANGES, "bytes");
+    }
+
+    /**
+     * Parses a single byte range (bytes=first-last, bytes=first- or bytes=-suffix).
+     * @param header The Range header.
+     * @param length The entity length.
+     * @return The first and last byte of the range, or null if it is not a satisfiable single range.
+     */
+    static long[] parseSingleRange(Optional<String> header, long length) {
+        if (!header.isPresent() || length <= 0) {
+            return null;
+        }
+        String value = header.get().trim();
+        if (!value.startsWith("bytes=") || value.contains(",")) {
+            return null;
+        }
+        String spec = value.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String firstStr = spec.substring(0, dash).trim();
+            String lastStr = spec.substring(dash + 1).trim();
+            long first;
+            long last;
+            if (firstStr.isEmpty()) {
+                // Suffix range, the last N bytes
+                long suffix = Long.parseLong(lastStr);
+                if (suffix <= 0) {
+                    return null;
+                }
+                first = Math.max(0, length - suffix);
+                last = length - 1;
+            } else {
+                first = Long.parseLong(firstStr);
+                last = lastStr.isEmpty() ? length - 1 : Math.min(Long.parseLong(lastStr), length - 1);
+            }
+            if (first < 0 || first > last || first >= length) {
+                return null;
+            }
+            return new long[]{first, last};
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+}
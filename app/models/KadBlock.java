@@ -74,7 +74,17 @@ public class KadBlock extends Model {
         return find.query().where().findCount();
     }
 
-    public static List<KadBlock> getPage(int skip, int limit) {
-        return find.query().where().setFirstRow(skip).setMaxRows(limit).findList();
+    /**
+     * Gets a page of blocks, ordered by id (keyset pagination, the cost does not grow with the position)
+     * @param afterId The last id of the previous page, null for the first page.
+     * @param limit The page size.
+     * @return The blocks.
+     */
+    public static List<KadBlock> getPageAfter(String afterId, int limit) {
+        ExpressionList<KadBlock> query = find.query().where();
+        if (afterId != null) {
+            query = query.gt("id", afterId);
+        }
+        return query.orderBy("id asc").setMaxRows(limit).findList();
     }
 }
@@ -1,5 +1,6 @@
 package services;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import models.KadBlock;
@@ -7,19 +8,24 @@ import models.VideoUploadStatus;
 import org.tron.common.crypto.Hash;
 import play.api.Play;
 import play.inject.ApplicationLifecycle;
+import play.libs.Json;
 import services.kademlia.*;
 import services.videos.VideoIndex;
+import services.videos.VideoIndexCache;
 import services.videos.VideoResolutionIndex;
 import utils.StorageConfiguration;
 import utils.StoragePaths;
 
-import javax.crypto.spec.IvParameterSpec;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 /**
@@ -51,28 +57,45 @@ public class DHTService {
     private final RoutingTable routingTable;
     private List<Node> seedNodes;
 
-    private int commId;
+    private final AtomicInteger commId;
 
-    private final Map<Integer, Semaphore> waitingResponses;
-    private final Map<Integer, KadMessageReceiver> receivers;
-    private final Map<Integer, TimerTask> timeouts;
-    private final Map<Integer, KadUDPMessage> responses;
-    private final Map<KadKey, ContentRecoverOperation> recoverOperations;
+    private final ConcurrentMap<Integer, CompletableFuture<KadUDPMessage>> pendingReplies;
+    private final ConcurrentMap<KadKey, ContentRecoverOperation> recoverOperations;
+    private final ConcurrentMap<KadKey, CompletableFuture<byte[]>> inFlightReads;
 
-    private final Timer timer;
+    private final VideoIndexCache videoIndexCache;
+    private final LookupCache lookupCache;
+    private final LookupMetrics lookupMetrics;
 
-    private ServerSocket serverTCP;
+    private StoredKeysWalker publishWalker;
+    private StoredKeysWalker purgeWalker;
+
+    private final ScheduledExecutorService scheduler;
+    private final TimeoutWheel timeouts;
+    private final ThreadPoolExecutor replyExecutor;
+    private final AtomicInteger replyQueuePeak;
+
+    private KademliaTCPServer serverTCP;
     private DatagramSocket serverUDP;
 
-    private Thread tcpServerThread;
-    private Thread udpServerThread;
+    private final List<Thread> udpServerThreads;
 
     private ThreadPoolExecutor contentRecoverExecutor;
+    private ThreadPoolExecutor blockReadExecutor;
+    private ThreadPoolExecutor storeExecutor;
+    private ThreadPoolExecutor uploadExecutor;
+    private ThreadPoolExecutor replicaReadExecutor;
+
+    private final PeerLatencyTracker latencyTracker;
+    private final AtomicLong hedgedReads;
+    private final AtomicLong hedgeWins;
+
+    private final PeerConnectionPool peerConnectionPool;
 
-    private boolean ended;
+    private volatile boolean ended;
 
-    private boolean publishing;
-    private boolean doingPurge;
+    private final AtomicBoolean publishing;
+    private final AtomicBoolean doingPurge;
 
     private boolean s3;
     private boolean ipfs;
@@ -82,16 +105,20 @@ public class DHTService {
     public DHTService(ApplicationLifecycle lifecycle, StorageModeService storageModeService) throws IOException {
         StorageConfiguration.load();
         this.ended = false;
-        this.publishing = false;
-        this.doingPurge = false;
-        this.commId = 0;
-        this.waitingResponses = new TreeMap<>();
-        this.responses = new TreeMap<>();
-        this.receivers = new TreeMap<>();
-        this.timeouts = new TreeMap<>();
-        this.recoverOperations = new TreeMap<>();
-
-        this.timer = new Timer(true);
+        this.publishing = new AtomicBoolean(false);
+        this.doingPurge = new AtomicBoolean(false);
+        this.commId = new AtomicInteger(0);
+        this.pendingReplies = new ConcurrentHashMap<>();
+        this.udpServerThreads = new ArrayList<>();
+        this.recoverOperations = new ConcurrentHashMap<>();
+        this.inFlightReads = new ConcurrentHashMap<>();
+        this.videoIndexCache = new VideoIndexCache(StorageConfiguration.VIDEO_INDEX_CACHE_SIZE);
+
+        this.scheduler = Executors.newScheduledThreadPool(3, r -> {
+            Thread t = new Thread(r, "kad-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
 
         // Load configuration
         Config config = ConfigFactory.load();
@@ -105,10 +132,106 @@ public class DHTService {
         KademliaConfiguration.MAX_BLOCK_SIZE = config.getBytes("kademlia.block.size");
         KademliaConfiguration.REPLICATION = config.getInt("kademlia.replication");
 
+        if (config.hasPath("kademlia.tcp.pool.size")) {
+            KademliaConfiguration.TCP_POOL_SIZE = config.getInt("kademlia.tcp.pool.size");
+        }
+        if (config.hasPath("kademlia.tcp.idle.timeout")) {
+            KademliaConfiguration.TCP_IDLE_TIMEOUT = config.getInt("kademlia.tcp.idle.timeout");
+        }
+        if (config.hasPath("kademlia.tcp.request.timeout")) {
+            KademliaConfiguration.TCP_REQUEST_TIMEOUT = config.getInt("kademlia.tcp.request.timeout");
+        }
+        if (config.hasPath("kademlia.tcp.server.workers")) {
+            KademliaConfiguration.TCP_SERVER_WORKERS = config.getInt("kademlia.tcp.server.workers");
+        }
+        if (config.hasPath("kademlia.tcp.server.connections")) {
+            KademliaConfiguration.TCP_SERVER_CONNECTIONS = config.getInt("kademlia.tcp.server.connections");
+        }
+
+        this.peerConnectionPool = new PeerConnectionPool();
+
         KademliaConfiguration.NETWORK_PROOF_KEY = Hash.sha3(config.getString("registration.kad_key").getBytes());
 
+        this.lookupMetrics = new LookupMetrics();
+        this.lookupCache = new LookupCache(
+                config.hasPath("kademlia.lookup.cache.size") ? config.getLong("kademlia.lookup.cache.size") : 4096,
+                config.hasPath("kademlia.lookup.cache.ttl") ? config.getLong("kademlia.lookup.cache.ttl") : 60000,
+                config.hasPath("kademlia.lookup.cache.prefix") ? config.getInt("kademlia.lookup.cache.prefix") : 16);
+
+        if (config.hasPath("kademlia.announce.batch")) {
+            KademliaConfiguration.ANNOUNCE_BATCH = Math.min(config.getInt("kademlia.announce.batch"), KadUDPMessage.MAX_ANNOUNCE_BATCH);
+        }
+        if (config.hasPath("kademlia.udp.readers")) {
+            KademliaConfiguration.UDP_READERS = config.getInt("kademlia.udp.readers");
+        }
+        if (config.hasPath("kademlia.dispatch.threads")) {
+            KademliaConfiguration.DISPATCH_THREADS = config.getInt("kademlia.dispatch.threads");
+        }
+        if (config.hasPath("kademlia.dispatch.queue")) {
+            KademliaConfiguration.DISPATCH_QUEUE = config.getInt("kademlia.dispatch.queue");
+        }
+
+        // Replies and timeouts of the lookups. When the queue is full the UDP thread runs them, slowing down the reception
+        this.replyExecutor = new ThreadPoolExecutor(KademliaConfiguration.DISPATCH_THREADS, KademliaConfiguration.DISPATCH_THREADS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(KademliaConfiguration.DISPATCH_QUEUE), new ThreadPoolExecutor.CallerRunsPolicy());
+        this.replyExecutor.allowCoreThreadTimeOut(true);
+        this.replyQueuePeak = new AtomicInteger(0);
+        this.timeouts = new TimeoutWheel(KademliaConfiguration.TIMEOUT_TICK, 512, this::dispatch);
+
+        if (config.hasPath("kademlia.republish.parallelism")) {
+            KademliaConfiguration.REPUBLISH_PARALLELISM = config.getInt("kademlia.republish.parallelism");
+        }
+        if (config.hasPath("kademlia.republish.rate")) {
+            KademliaConfiguration.REPUBLISH_RATE = config.getDouble("kademlia.republish.rate");
+        }
+
+        if (config.hasPath("kademlia.store.inflight")) {
+            KademliaConfiguration.STORE_IN_FLIGHT = config.getInt("kademlia.store.inflight");
+        }
+        if (config.hasPath("kademlia.store.threads")) {
+            KademliaConfiguration.STORE_THREADS = config.getInt("kademlia.store.threads");
+        }
+        if (config.hasPath("kademlia.store.retries")) {
+            KademliaConfiguration.STORE_RETRIES = config.getInt("kademlia.store.retries");
+        }
+
+        // Replica stores, shared by all the uploads. The blocks in flight are bounded by the uploaders
+        storeExecutor = new ThreadPoolExecutor(KademliaConfiguration.STORE_THREADS, KademliaConfiguration.STORE_THREADS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        storeExecutor.allowCoreThreadTimeOut(true);
+
+        // Block stores with their retries, waiting for the replica stores (a separate pool, so they cannot starve them)
+        uploadExecutor = new ThreadPoolExecutor(KademliaConfiguration.STORE_THREADS, KademliaConfiguration.STORE_THREADS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        uploadExecutor.allowCoreThreadTimeOut(true);
+
+        if (config.hasPath("kademlia.read.threads")) {
+            KademliaConfiguration.READ_THREADS = config.getInt("kademlia.read.threads");
+        }
+        if (config.hasPath("kademlia.read.hedge.percentile")) {
+            KademliaConfiguration.HEDGE_PERCENTILE = config.getDouble("kademlia.read.hedge.percentile");
+        }
+        if (config.hasPath("kademlia.read.hedge.delay")) {
+            KademliaConfiguration.HEDGE_DELAY = config.getLong("kademlia.read.hedge.delay");
+        }
+
+        this.latencyTracker = new PeerLatencyTracker(256, KademliaConfiguration.HEDGE_PERCENTILE, KademliaConfiguration.HEDGE_DELAY,
+                KademliaConfiguration.HEDGE_MIN_DELAY, KademliaConfiguration.TCP_REQUEST_TIMEOUT);
+        this.hedgedReads = new AtomicLong(0);
+        this.hedgeWins = new AtomicLong(0);
+
+        // Reads from the replicas. A hedged read that lost keeps its thread until it finishes
+        replicaReadExecutor = new ThreadPoolExecutor(KademliaConfiguration.READ_THREADS, KademliaConfiguration.READ_THREADS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        replicaReadExecutor.allowCoreThreadTimeOut(true);
+
         contentRecoverExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(KademliaConfiguration.CONCURRENCY);
 
+        // Read-ahead for video streams, bounded so a burst of viewers cannot queue unlimited fetches
+        blockReadExecutor = new ThreadPoolExecutor(StorageConfiguration.STREAM_READ_AHEAD_THREADS, StorageConfiguration.STREAM_READ_AHEAD_THREADS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(StorageConfiguration.STREAM_READ_AHEAD_THREADS * StorageConfiguration.STREAM_READ_AHEAD_BLOCKS));
+        blockReadExecutor.allowCoreThreadTimeOut(true);
+
         localNode = new Node(config.getString("kademlia.local.address"), config.getInt("kademlia.local.port"));
         this.seedNodes = config.getList("kademlia.seed.nodes").unwrapped().stream().map(n -> new Node(n.toString())).collect(Collectors.toList());
 
@@ -140,50 +263,48 @@ public class DHTService {
                 bindAddress = new InetSocketAddress(port);
             }
 
-            serverTCP = new ServerSocket(bindAddress.getPort(), 0, bindAddress.getAddress());
+            serverTCP = new KademliaTCPServer(this, bindAddress, KademliaConfiguration.TCP_SERVER_WORKERS, KademliaConfiguration.TCP_SERVER_CONNECTIONS);
             serverUDP = new DatagramSocket(bindAddress);
 
             System.out.println("Kademlia server started on " + bindAddress + "!");
 
-            this.udpServerThread = new Thread(() -> udpServer());
-            this.udpServerThread.start();
+            for (int i = 0; i < KademliaConfiguration.UDP_READERS; i++) {
+                Thread reader = new Thread(() -> udpServer(), "kad-udp-" + i);
+                reader.start();
+                this.udpServerThreads.add(reader);
+            }
 
-            this.tcpServerThread = new Thread(() -> tcpServer());
-            this.tcpServerThread.start();
+            serverTCP.start();
 
-            timer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    new Thread(() -> {
-                        try {
-                            boostrapWithSeedNodes();
-                        } catch (Exception ex) {
-                            ex.printStackTrace();
-                        }
-                    }).start();
+            this.routingTable.setPinger(this::pingContact);
 
-                    new Thread(() -> {
-                        try {
-                            publishDHT();
-                        } catch (Exception ex) {
-                            ex.printStackTrace();
-                        }
-                    }).start();
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    boostrapWithSeedNodes();
+                } catch (Exception ex) {
+                    ex.printStackTrace();
                 }
-            }, KademliaConfiguration.RESTORE_INTERVAL, KademliaConfiguration.RESTORE_INTERVAL);
-
-            timer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    new Thread(() -> {
-                        try {
-                            purgeStorage();
-                        } catch (Exception ex) {
-                            ex.printStackTrace();
-                        }
-                    }).start();
+            }, KademliaConfiguration.RESTORE_INTERVAL, KademliaConfiguration.RESTORE_INTERVAL, TimeUnit.MILLISECONDS);
+
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    publishDHT();
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }, KademliaConfiguration.RESTORE_INTERVAL, KademliaConfiguration.RESTORE_INTERVAL, TimeUnit.MILLISECONDS);
+
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    purgeStorage();
+                } catch (Exception ex) {
+                    ex.printStackTrace();
                 }
-            }, KademliaConfiguration.PURGE_INTERVAL, KademliaConfiguration.PURGE_INTERVAL);
+            }, KademliaConfiguration.PURGE_INTERVAL, KademliaConfiguration.PURGE_INTERVAL, TimeUnit.MILLISECONDS);
+
+            scheduler.scheduleWithFixedDelay(() -> {
+                peerConnectionPool.closeIdleConnections();
+            }, KademliaConfiguration.TCP_IDLE_TIMEOUT / 2, KademliaConfiguration.TCP_IDLE_TIMEOUT / 2, TimeUnit.MILLISECONDS);
 
             new Thread(() -> {
                 boostrapWithSeedNodes();
@@ -200,6 +321,10 @@ public class DHTService {
         return this.localNode;
     }
 
+    public PeerConnectionPool getPeerConnectionPool() {
+        return this.peerConnectionPool;
+    }
+
     public void boostrapWithSeedNodes() {
         boolean boostrapped = false;
         for (Node seed : this.seedNodes) {
@@ -221,34 +346,31 @@ public class DHTService {
     /**
      * @return A new communication id to use.
      */
-    public synchronized int getNextCommId() {
-        this.commId++;
-        if (this.commId < 0) {
-            this.commId = 1;
-        }
-        return this.commId;
+    public int getNextCommId() {
+        return this.commId.updateAndGet(id -> id == Integer.MAX_VALUE ? 1 : id + 1);
     }
 
     /**
-     * Creates a new semaphore for waiting for a reply.
+     * Registers a request waiting for reply.
      *
      * @param commId The communication id.
-     * @return The semaphore.
+     * @return The future reply, completed by provideResponse.
      */
-    public synchronized Semaphore startWaitingFor(int commId) {
-        Semaphore sem = new Semaphore(0);
-        waitingResponses.put(commId, sem);
-        return sem;
+    public CompletableFuture<KadUDPMessage> startWaitingFor(int commId) {
+        CompletableFuture<KadUDPMessage> reply = new CompletableFuture<>();
+        pendingReplies.put(commId, reply);
+        return reply;
     }
 
     /**
      * Stop waiting (timeout)
      *
      * @param commId The communication id.
+     * @param reply  The future returned by startWaitingFor.
+     * @return False if the reply was already provided.
      */
-    public synchronized void stopWaitingFor(int commId) {
-        waitingResponses.remove(commId);
-        responses.remove(commId);
+    public boolean stopWaitingFor(int commId, CompletableFuture<KadUDPMessage> reply) {
+        return pendingReplies.remove(commId, reply);
     }
 
     /**
@@ -256,20 +378,20 @@ public class DHTService {
      *
      * @param commId   The communication id.
      * @param receiver The receiver ID.
-     * @param timeout
+     * @param timeout  The timeout task, cancelled when the reply arrives.
      */
-    public synchronized void receiveAsync(int commId, KadMessageReceiver receiver, TimerTask timeout) {
-        receivers.put(commId, receiver);
-        timeouts.put(commId, timeout);
+    public void receiveAsync(int commId, KadMessageReceiver receiver, TimeoutWheel.Timeout timeout) {
+        CompletableFuture<KadUDPMessage> reply = startWaitingFor(commId);
+        reply.thenAccept(response -> {
+            timeout.cancel();
+            dispatch(() -> receiver.receive(response));
+        });
     }
 
-    public synchronized void cancelReceiveAsync(int commId) {
+    public void cancelReceiveAsync(int commId, TimeoutWheel.Timeout timeout) {
         System.out.println("Timed out: " + commId);
-        receivers.remove(commId);
-        if (timeouts.containsKey(commId)) {
-            timeouts.get(commId).cancel();
-            timeouts.remove(commId);
-        }
+        pendingReplies.remove(commId);
+        timeout.cancel();
     }
 
     /**
@@ -279,52 +401,74 @@ public class DHTService {
      * @param response The response.
      * @return True if the message was a valid response, false otherwise.
      */
-    public synchronized boolean provideResponse(int commId, KadUDPMessage response) {
-        if (receivers.containsKey(commId)) {
-            final KadMessageReceiver receiver = receivers.get(commId);
-            new Thread(() -> {
-                receiver.receive(response);
-            }).start();
-
-            receivers.remove(commId);
-            if (timeouts.containsKey(commId)) {
-                timeouts.get(commId).cancel();
-                timeouts.remove(commId);
-            }
-            return true;
-        } else if (waitingResponses.containsKey(commId)) {
-            responses.put(commId, response);
-            waitingResponses.get(commId).release();
-            waitingResponses.remove(commId);
-            return true;
-        } else {
+    public boolean provideResponse(int commId, KadUDPMessage response) {
+        CompletableFuture<KadUDPMessage> reply = pendingReplies.remove(commId);
+        if (reply == null) {
             return false;
         }
+        reply.complete(response);
+        return true;
     }
 
     /**
-     * Retrieves the provided response.
+     * Runs a reply or timeout handler in the dispatch executor.
      *
-     * @param commId The communication id.
-     * @return The response.
+     * @param task The handler.
+     */
+    private void dispatch(Runnable task) {
+        replyExecutor.execute(() -> {
+            try {
+                task.run();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        });
+        int queued = replyExecutor.getQueue().size();
+        int peak;
+        while (queued > (peak = replyQueuePeak.get()) && !replyQueuePeak.compareAndSet(peak, queued)) {
+            // Retry
+        }
+    }
+
+    /**
+     * @return The number of replies and timeouts waiting for a dispatch thread.
      */
-    public synchronized KadUDPMessage getResponse(int commId) {
-        KadUDPMessage response = responses.get(commId);
-        responses.remove(commId);
-        return response;
+    public int getDispatchQueueSize() {
+        return replyExecutor.getQueue().size();
+    }
+
+    /**
+     * @return The max number of replies and timeouts that waited at the same time.
+     */
+    public int getDispatchQueuePeak() {
+        return replyQueuePeak.get();
+    }
+
+    /**
+     * @return The number of requests waiting for reply.
+     */
+    public int getPendingRequestCount() {
+        return pendingReplies.size();
+    }
+
+    /**
+     * @return The number of scheduled request timeouts.
+     */
+    public int getScheduledTimeoutCount() {
+        return timeouts.getPendingCount();
     }
 
     /**
      * Provides an asynchronous timeout.
      *
-     * @param commId The communication id.
+     * @param commId   The communication id.
+     * @param receiver The receiver.
      */
-    public synchronized void provideAsyncResponseTimeout(int commId) {
-        if (receivers.containsKey(commId)) {
-            receivers.get(commId).timeout(commId);
-            receivers.remove(commId);
+    public void provideAsyncResponseTimeout(int commId, KadMessageReceiver receiver) {
+        CompletableFuture<KadUDPMessage> reply = pendingReplies.get(commId);
+        if (reply != null && pendingReplies.remove(commId, reply)) {
+            receiver.timeout(commId);
         }
-        timeouts.remove(commId);
     }
 
     /**
@@ -333,10 +477,9 @@ public class DHTService {
      * @param key  The block kad_key
      * @param node The node that announces the block.
      */
-    public synchronized void startContentRecover(KadKey key, Node node) {
-        if (!this.recoverOperations.containsKey(key)) {
-            ContentRecoverOperation op = new ContentRecoverOperation(this, key, node);
-            this.recoverOperations.put(key, op);
+    public void startContentRecover(KadKey key, Node node) {
+        ContentRecoverOperation op = new ContentRecoverOperation(this, key, node);
+        if (this.recoverOperations.putIfAbsent(key, op) == null) {
             contentRecoverExecutor.execute(op);
         }
     }
@@ -346,21 +489,31 @@ public class DHTService {
      *
      * @param key Th block kad_key
      */
-    public synchronized void finishContentRecover(KadKey key) {
+    public void finishContentRecover(KadKey key) {
         this.recoverOperations.remove(key);
     }
 
 
     /**
-     * TCP server.
+     * UDP server. Runs in every reader thread: the packets are received in turns,
+     * and decoded, validated and handled in parallel.
      */
-    public void tcpServer() {
+    public void udpServer() {
+        // Reused for every packet, the message copies what it needs
+        byte[] buffer = new byte[DATAGRAM_BUFFER_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
         while (!ended) {
             try {
-                Socket s = serverTCP.accept();
+                /* Wait for a packet */
+                packet.setLength(buffer.length);
+                serverUDP.receive(packet);
 
-                KademliaConnectionHandler handler = new KademliaConnectionHandler(this, s);
-                handler.start();
+                this.handlePacket(packet);
+            } catch (SocketException ex) {
+                if (!ended) {
+                    ex.printStackTrace();
+                }
             } catch (Exception ex) {
                 ex.printStackTrace();
             }
@@ -368,61 +521,59 @@ public class DHTService {
     }
 
     /**
-     * UDP server.
+     * Handles a received packet.
+     *
+     * @param packet The packet.
+     * @throws IOException
      */
-    public void udpServer() {
-        while (!ended) {
-            try {
-                /* Wait for a packet */
-                byte[] buffer = new byte[DATAGRAM_BUFFER_SIZE];
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                serverUDP.receive(packet);
+    private void handlePacket(DatagramPacket packet) throws IOException {
+        ByteArrayInputStream bin = new ByteArrayInputStream(packet.getData(), packet.getOffset(), packet.getLength());
+        DataInputStream din = new DataInputStream(bin);
 
-                ByteArrayInputStream bin = new ByteArrayInputStream(packet.getData(), packet.getOffset(), packet.getLength());
-                DataInputStream din = new DataInputStream(bin);
+        KadUDPMessage msg = new KadUDPMessage();
+        msg.readFromStream(din);
+        din.close();
 
-                KadUDPMessage msg = new KadUDPMessage();
-                msg.readFromStream(din);
-                din.close();
+        //System.out.println("[DEBUG] Received packet: " + msg.toString());
 
-                //System.out.println("[DEBUG] Received packet: " + msg.toString());
+        if (!msg.isValid()) {
+            System.out.println("[WARNING] Received invalid message from " + packet.getAddress().toString() + ":" + packet.getPort());
+            return;
+        }
 
-                if (!msg.isValid()) {
-                    System.out.println("[WARNING] Received invalid message from " + packet.getAddress().toString() + ":" + packet.getPort());
-                    continue;
+        if (msg.isReply()) {
+            if (!this.provideResponse(msg.getCommId(), msg)) {
+                System.out.println("[WARNING] Received invalid / timed-out response from " + packet.getAddress().toString() + ":" + packet.getPort());
+            }
+        } else {
+            if (msg.isHello()) {
+                /* Hello received */
+                this.routingTable.insert(msg.getOrigin(), msg.getTimestamp());
+
+                if (!msg.isReply()) {
+                    // Reply to the origin with other hello
+                    KadUDPMessage replyHello = KadUDPMessage.createHelloMessage(localNode, (-1) * msg.getCommId());
+                    this.sendMessage(msg.getOrigin(), replyHello);
                 }
-
-                if (msg.isReply()) {
-                    if (!this.provideResponse(msg.getCommId(), msg)) {
-                        System.out.println("[WARNING] Received invalid / timed-out response from " + packet.getAddress().toString() + ":" + packet.getPort());
-                    }
-                } else {
-                    if (msg.isHello()) {
-                        /* Hello received */
-                        this.routingTable.insert(msg.getOrigin(), msg.getTimestamp());
-
-                        if (!msg.isReply()) {
-                            // Reply to the origin with other hello
-                            KadUDPMessage replyHello = KadUDPMessage.createHelloMessage(localNode, (-1) * msg.getCommId());
-                            this.sendMessage(msg.getOrigin(), replyHello);
-                        }
-                    } else if (msg.isLookup() && !msg.isReply()) {
-                        /* Lookup request received */
-                        this.routingTable.insert(msg.getOrigin(), msg.getTimestamp());
-                        List<Node> closestNodes = this.routingTable.findClosest(msg.getLookup(), KademliaConfiguration.K);
-                        KadUDPMessage replyLookup = KadUDPMessage.createLookupReplyMessage(localNode, (-1) * msg.getCommId(), closestNodes);
-                        this.sendMessage(msg.getOrigin(), replyLookup);
-                    } else if (msg.isAnnounce()) {
-                        if (!this.storageService.hasBlockLocal(msg.getLookup())) {
-                            // Start operation for recovering the content
-                            this.startContentRecover(msg.getLookup(), msg.getOrigin());
-                        }
-                    } else {
-                        System.out.println("[WARNING] Dropped unexpected message received from " + packet.getAddress().toString() + ":" + packet.getPort());
+            } else if (msg.isLookup() && !msg.isReply()) {
+                /* Lookup request received */
+                this.routingTable.insert(msg.getOrigin(), msg.getTimestamp());
+                List<Node> closestNodes = this.routingTable.findClosest(msg.getLookup(), KademliaConfiguration.K);
+                KadUDPMessage replyLookup = KadUDPMessage.createLookupReplyMessage(localNode, (-1) * msg.getCommId(), closestNodes);
+                this.sendMessage(msg.getOrigin(), replyLookup);
+            } else if (msg.isAnnounce()) {
+                if (!this.storageService.hasBlockLocal(msg.getLookup())) {
+                    // Start operation for recovering the content
+                    this.startContentRecover(msg.getLookup(), msg.getOrigin());
+                }
+            } else if (msg.isAnnounceBatch()) {
+                for (KadKey key : msg.getKeys()) {
+                    if (!this.storageService.hasBlockLocal(key)) {
+                        this.startContentRecover(key, msg.getOrigin());
                     }
                 }
-            } catch (Exception ex) {
-                ex.printStackTrace();
+            } else {
+                System.out.println("[WARNING] Dropped unexpected message received from " + packet.getAddress().toString() + ":" + packet.getPort());
             }
         }
     }
@@ -448,18 +599,16 @@ public class DHTService {
      * @throws InterruptedException
      */
     public KadUDPMessage sendMessageAndWaitForReply(Node destination, KadUDPMessage msg) throws IOException, InterruptedException {
-        Semaphore sem = this.startWaitingFor(msg.getCommId());
-        msg.send(this.serverUDP, destination);
+        CompletableFuture<KadUDPMessage> reply = this.startWaitingFor(msg.getCommId());
         try {
-            if (sem.tryAcquire(KademliaConfiguration.RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
-                return this.getResponse(msg.getCommId());
-            } else {
-                this.stopWaitingFor(msg.getCommId());
-                throw new IOException("Response Timed-out");
-            }
-        } catch (InterruptedException e) {
-            this.stopWaitingFor(msg.getCommId());
-            throw e;
+            msg.send(this.serverUDP, destination);
+            return reply.get(KademliaConfiguration.RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IOException("Response Timed-out");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage());
+        } finally {
+            this.stopWaitingFor(msg.getCommId(), reply);
         }
     }
 
@@ -473,24 +622,12 @@ public class DHTService {
      */
     public void sendMessageWithAsyncReply(Node destination, KadUDPMessage msg, KadMessageReceiver receiver) throws IOException {
         // Setup receiver and timeout task
-        TimerTask task = new TimerTask() {
-            @Override
-            public void run() {
-                new Thread(() -> {
-                    try {
-                        provideAsyncResponseTimeout(msg.getCommId());
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
-                    }
-                }).start();
-            }
-        };
+        TimeoutWheel.Timeout task = timeouts.schedule(() -> provideAsyncResponseTimeout(msg.getCommId(), receiver), KademliaConfiguration.OPERATION_TIMEOUT);
         this.receiveAsync(msg.getCommId(), receiver, task);
-        timer.schedule(task, KademliaConfiguration.OPERATION_TIMEOUT);
         try {
             msg.send(this.serverUDP, destination);
         } catch (IOException e) {
-            this.cancelReceiveAsync(msg.getCommId());
+            this.cancelReceiveAsync(msg.getCommId(), task);
             throw e;
         }
     }
@@ -507,6 +644,37 @@ public class DHTService {
         return this.sendMessageAndWaitForReply(destination, KadUDPMessage.createHelloMessage(localNode, this.getNextCommId()));
     }
 
+    /**
+     * Pings a contact of the routing table without waiting. If it does not reply it is
+     * reported as unresponsive, and replaced if there is a replacement for it.
+     *
+     * @param node The contact.
+     */
+    private void pingContact(Node node) {
+        KadMessageReceiver receiver = new KadMessageReceiver() {
+            @Override
+            public void receive(KadUDPMessage message) {
+                routingTable.pingFinished(node);
+                if (message.isHello()) {
+                    routingTable.insert(message.getOrigin(), message.getTimestamp());
+                } else {
+                    routingTable.setUnresponsiveContact(node);
+                }
+            }
+
+            @Override
+            public void timeout(int commId) {
+                routingTable.pingFinished(node);
+                routingTable.setUnresponsiveContact(node);
+            }
+        };
+        try {
+            this.sendMessageWithAsyncReply(node, KadUDPMessage.createHelloMessage(localNode, this.getNextCommId()), receiver);
+        } catch (IOException ex) {
+            receiver.timeout(0);
+        }
+    }
+
     /**
      * Sends a lookup request
      *
@@ -582,6 +750,58 @@ public class DHTService {
         return operation.waitForResult(KademliaConfiguration.OPERATION_TIMEOUT);
     }
 
+    /**
+     * Finds the closest nodes to a kad_key, reusing a recent lookup of the same keyspace region
+     * if the buckets it came from did not change since.
+     *
+     * @param lookupKey The kad_key we are looking for
+     * @return The K closest nodes to the kad_key.
+     * @throws TimeoutException
+     * @throws InterruptedException
+     */
+    public List<Node> cachedNodeLookup(KadKey lookupKey) throws TimeoutException, InterruptedException {
+        List<Node> cached = this.lookupCache.get(lookupKey, this.routingTable);
+        if (cached != null) {
+            return cached;
+        }
+        List<Node> closestNodes = this.nodeLookup(lookupKey);
+        this.lookupCache.put(lookupKey, this.routingTable, closestNodes);
+        return closestNodes;
+    }
+
+    public LookupCache getLookupCache() {
+        return this.lookupCache;
+    }
+
+    /**
+     * @return Hops, messages and duration of the node lookups.
+     */
+    public LookupMetrics getLookupMetrics() {
+        return this.lookupMetrics;
+    }
+
+    /**
+     * @return The republish pass, with its progress.
+     */
+    public synchronized StoredKeysWalker getPublishWalker() {
+        if (this.publishWalker == null) {
+            this.publishWalker = new StoredKeysWalker("republish", this.storageService, StoragePaths.getCursorsPath(),
+                    KademliaConfiguration.REPUBLISH_PARALLELISM, KademliaConfiguration.REPUBLISH_RATE);
+        }
+        return this.publishWalker;
+    }
+
+    /**
+     * @return The purge pass, with its progress.
+     */
+    public synchronized StoredKeysWalker getPurgeWalker() {
+        if (this.purgeWalker == null) {
+            this.purgeWalker = new StoredKeysWalker("purge", this.storageService, StoragePaths.getCursorsPath(),
+                    KademliaConfiguration.REPUBLISH_PARALLELISM, KademliaConfiguration.REPUBLISH_RATE);
+        }
+        return this.purgeWalker;
+    }
+
     /**
      * Start refreshing kademlia buckets
      */
@@ -599,27 +819,41 @@ public class DHTService {
      */
     public void publishDHT() {
         // Publishes DHT to other peers
-        synchronized (this) {
-            if (this.publishing) {
-                return;
-            }
-            this.publishing = true;
+        if (!this.publishing.compareAndSet(false, true)) {
+            return;
         }
 
-        int total = storageService.countStoredBlocks();
+        // Keys to announce, grouped by replica
+        Map<Node, List<KadKey>> batches = new HashMap<>();
 
-        for (int i = 0; i < total; i = i + KademliaConfiguration.CONCURRENCY) {
-            List<KadKey> keys = storageService.listStoredKeys(i, KademliaConfiguration.CONCURRENCY);
-            for (KadKey key : keys) {
-                try {
-                    this.publishKey(key);
-                } catch (Exception ex) {
-                    ex.printStackTrace();
+        try {
+            getPublishWalker().run(key -> {
+                for (Node node : this.findReplicas(key)) {
+                    if (node.equals(this.localNode)) {
+                        continue;
+                    }
+                    List<KadKey> full = null;
+                    synchronized (batches) {
+                        List<KadKey> batch = batches.computeIfAbsent(node, k -> new ArrayList<>());
+                        batch.add(key);
+                        if (batch.size() >= KademliaConfiguration.ANNOUNCE_BATCH) {
+                            full = batches.remove(node);
+                        }
+                    }
+                    if (full != null) {
+                        this.sendAnnounce(node, full);
+                    }
                 }
+            });
+
+            for (Map.Entry<Node, List<KadKey>> entry : batches.entrySet()) {
+                this.sendAnnounce(entry.getKey(), entry.getValue());
             }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.publishing.set(false);
         }
-
-        this.publishing = false;
     }
 
     /**
@@ -630,14 +864,59 @@ public class DHTService {
      * @throws InterruptedException
      */
     public void publishKey(KadKey key) throws KademliaOperationException, InterruptedException {
-        List<Node> closestNodes;
+        for (Node node : this.findReplicas(key)) {
+            if (!node.equals(this.localNode)) {
+                // Send announce message to all the replicas
+                this.sendAnnounce(node, Collections.singletonList(key));
+            }
+        }
+    }
 
+    /**
+     * Announces kad_keys to a replica, in as few messages as possible.
+     *
+     * @param node The replica.
+     * @param keys The kad_keys.
+     */
+    private void sendAnnounce(Node node, List<KadKey> keys) {
+        try {
+            if (keys.size() == 1 || KademliaConfiguration.ANNOUNCE_BATCH <= 1) {
+                for (KadKey key : keys) {
+                    this.sendMessage(node, KadUDPMessage.createAnnounceMessage(this.localNode, 0, key));
+                }
+            } else {
+                for (int i = 0; i < keys.size(); i += KadUDPMessage.MAX_ANNOUNCE_BATCH) {
+                    List<KadKey> batch = keys.subList(i, Math.min(keys.size(), i + KadUDPMessage.MAX_ANNOUNCE_BATCH));
+                    this.sendMessage(node, KadUDPMessage.createAnnounceBatchMessage(this.localNode, 0, batch));
+                }
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Finds the replicas of a kad_key.
+     *
+     * @param key The kad_key.
+     * @return The closest nodes to the kad_key, up to REPLICATION. May include the local node.
+     * @throws KademliaOperationException
+     * @throws InterruptedException
+     */
+    private List<Node> findReplicas(KadKey key) throws KademliaOperationException, InterruptedException {
         try {
-            closestNodes = this.nodeLookup(key);
+            return this.replicasOf(this.cachedNodeLookup(key));
         } catch (TimeoutException e) {
             throw new KademliaOperationException("Node lookup timed out. Cannot find closest nodes to kad_key.");
         }
+    }
 
+    /**
+     * @param closestNodes The closest nodes to a kad_key.
+     * @return The replicas of the kad_key, up to REPLICATION. May include the local node.
+     * @throws KademliaOperationException If there are no nodes.
+     */
+    private List<Node> replicasOf(List<Node> closestNodes) throws KademliaOperationException {
         List<Node> replicaNodes = new ArrayList<>();
         for (int i = 0; i < closestNodes.size() && i < KademliaConfiguration.REPLICATION; i++) {
             replicaNodes.add(closestNodes.get(i));
@@ -647,16 +926,7 @@ public class DHTService {
             throw new KademliaOperationException("FATAL ERROR: There are not on-line nodes in the network. Make sure the configuration is correct.");
         }
 
-        for (Node node : replicaNodes) {
-            if (!node.equals(this.localNode)) {
-                try {
-                    // Send announce message to all the replicas
-                    this.sendMessage(node, KadUDPMessage.createAnnounceMessage(this.localNode, 0, key));
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                }
-            }
-        }
+        return replicaNodes;
     }
 
     /**
@@ -664,13 +934,24 @@ public class DHTService {
      */
     public void purgeStorage() {
         // Purges storage
-        synchronized (this) {
-            if (this.doingPurge) {
-                return;
-            }
-            this.doingPurge = true;
+        if (!this.doingPurge.compareAndSet(false, true)) {
+            return;
         }
 
+        try {
+            this.purgeUploadTemporalFiles();
+            getPurgeWalker().run(this::deleteKeyIfNotAssigned);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.doingPurge.set(false);
+        }
+    }
+
+    /**
+     * Removes the temporal files of the uploads that finished or expired.
+     */
+    private void purgeUploadTemporalFiles() {
         File[] files = StoragePaths.getUploadTemporalPath().toFile().listFiles();
         if (files == null) {
             files = new File[0];
@@ -698,21 +979,6 @@ public class DHTService {
                 }
             }
         }
-
-        int total = storageService.countStoredBlocks();
-
-        for (int i = 0; i < total; i = i + KademliaConfiguration.CONCURRENCY) {
-            List<KadKey> keys = storageService.listStoredKeys(i, KademliaConfiguration.CONCURRENCY);
-            for (KadKey key : keys) {
-                try {
-                    this.deleteKeyIfNotAssigned(key);
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                }
-            }
-        }
-
-        this.doingPurge = false;
     }
 
     /**
@@ -723,29 +989,18 @@ public class DHTService {
      * @throws InterruptedException
      */
     public void deleteKeyIfNotAssigned(KadKey key) throws KademliaOperationException, InterruptedException {
-        List<Node> closestNodes;
-
         try {
-            closestNodes = this.nodeLookup(key);
+            // The cached lookup is approximate, it is enough to keep a block but not to delete it
+            if (this.replicasOf(this.cachedNodeLookup(key)).contains(this.localNode)) {
+                return;
+            }
+            if (this.replicasOf(this.nodeLookup(key)).contains(this.localNode)) {
+                return;
+            }
         } catch (TimeoutException e) {
             throw new KademliaOperationException("Node lookup timed out. Cannot find closest nodes to kad_key.");
         }
 
-        List<Node> replicaNodes = new ArrayList<>();
-        for (int i = 0; i < closestNodes.size() && i < KademliaConfiguration.REPLICATION; i++) {
-            replicaNodes.add(closestNodes.get(i));
-        }
-
-        if (replicaNodes.isEmpty()) {
-            throw new KademliaOperationException("FATAL ERROR: There are not on-line nodes in the network. Make sure the configuration is correct.");
-        }
-
-        for (Node node : replicaNodes) {
-            if (node.equals(this.localNode)) {
-                return; // Assigned to us, do not delete
-            }
-        }
-
         // Delete the block to get free space.
         storageService.deleteBlockLocal(key);
     }
@@ -789,7 +1044,7 @@ public class DHTService {
         List<Node> closestNodes;
 
         try {
-            closestNodes = this.nodeLookup(key);
+            closestNodes = this.cachedNodeLookup(key);
         } catch (TimeoutException e) {
             throw new KademliaOperationException("Node lookup timed out. Cannot find closest nodes to kad_key.");
         }
@@ -803,40 +1058,81 @@ public class DHTService {
             throw new KademliaOperationException("FATAL ERROR: There are not on-line nodes in the network. Make sure the configuration is correct.");
         }
 
-        List<ContentStorageOperation> storageOps = new ArrayList<>();
+        List<Future<Boolean>> storageOps = new ArrayList<>();
 
         // Store the value in all the replicas
         for (Node n : replicaNodes) {
-            ContentStorageOperation op = new ContentStorageOperation(this, n, key, content);
-            storageOps.add(op);
-            op.start();
+            storageOps.add(storeExecutor.submit(new ContentStorageOperation(this, n, key, content)));
+        }
+
+        int stored = 0;
+        try {
+            for (Future<Boolean> op : storageOps) {
+                try {
+                    if (op.get()) {
+                        stored++;
+                    }
+                } catch (ExecutionException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        } catch (InterruptedException ex) {
+            for (Future<Boolean> op : storageOps) {
+                op.cancel(true);
+            }
+            throw ex;
         }
 
-        for (ContentStorageOperation op : storageOps) {
-            op.join();
+        if (stored == 0) {
+            throw new KademliaOperationException("Could not store the block in any replica.");
         }
     }
 
     /**
-     * Stores a video block in DHT.
+     * Stores a block in DHT, retrying with exponential backoff when it fails.
+     * @param key     The block kad_key
+     * @param content The content of the block.
+     * @throws KademliaOperationException If the block could not be stored after kademlia.store.retries attempts.
+     * @throws InterruptedException
      */
-    public KadKey storeVideoBlock(KadKey videokey, byte[] content, long b) {
-        KadKey key = KadKey.getKeyForBlock(videokey, content, b);
-        boolean success = false;
-        do {
+    public void storeBlockWithRetry(KadKey key, byte[] content) throws KademliaOperationException, InterruptedException {
+        long delay = KademliaConfiguration.STORE_BACKOFF_MIN;
+        for (int attempt = 1; ; attempt++) {
             try {
                 this.storeBlockInDHT(key, content);
-                success = true;
-            } catch (KademliaOperationException e) {
-                e.printStackTrace();
-            } catch (InterruptedException e) {
-                break;
+                return;
+            } catch (KademliaOperationException ex) {
+                if (KademliaConfiguration.STORE_RETRIES > 0 && attempt >= KademliaConfiguration.STORE_RETRIES) {
+                    throw ex;
+                }
+                System.out.println("[WARNING] Could not store block " + key + ", retrying in " + delay + " ms / Reason: " + ex.getMessage());
             }
-        } while (!success);
 
+            // Jitter, so the blocks that failed together do not retry together
+            Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+            delay = Math.min(delay * 2, KademliaConfiguration.STORE_BACKOFF_MAX);
+        }
+    }
+
+    /**
+     * Stores a video block in DHT.
+     */
+    public KadKey storeVideoBlock(KadKey videokey, byte[] content, long b) throws KademliaOperationException, InterruptedException {
+        KadKey key = KadKey.getKeyForBlock(videokey, content, b);
+        this.storeBlockWithRetry(key, content);
         return key;
     }
 
+    /**
+     * Creates an uploader for the blocks of a video, with kademlia.store.inflight blocks in flight.
+     * @param videoKey The video kad_key.
+     * @param listener Receives the progress, can be null.
+     * @return The uploader.
+     */
+    public BlockUploader createBlockUploader(KadKey videoKey, BlockUploader.ProgressListener listener) {
+        return new BlockUploader(this, uploadExecutor, videoKey, KademliaConfiguration.STORE_IN_FLIGHT, listener);
+    }
+
     /**
      * Finds and reads a block from the DHT.
      *
@@ -855,6 +1151,59 @@ public class DHTService {
             return cached;
         }
 
+        // Concurrent readers of the same block wait for a single fetch
+
+        while (true) {
+            CompletableFuture<byte[]> flight = new CompletableFuture<>();
+            CompletableFuture<byte[]> existing = inFlightReads.putIfAbsent(key, flight);
+
+            if (existing == null) {
+                byte[] content;
+                try {
+                    content = fetchBlock(key);
+                } catch (Throwable ex) {
+                    inFlightReads.remove(key, flight);
+                    flight.completeExceptionally(ex);
+                    throw ex;
+                }
+                inFlightReads.remove(key, flight);
+                flight.complete(content);
+                return content;
+            }
+
+            try {
+                return existing.get();
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof InterruptedException) {
+                    continue; // The fetching reader was cancelled, not this one. Retry.
+                } else if (cause instanceof BlockNotFoundException) {
+                    throw (BlockNotFoundException) cause;
+                } else if (cause instanceof KademliaOperationException) {
+                    throw (KademliaOperationException) cause;
+                } else {
+                    throw new KademliaOperationException(cause.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetches a block that is not in the cache, and stores it in the cache.
+     *
+     * @param key The block kad_key.
+     * @return The block content.
+     * @throws KademliaOperationException
+     * @throws InterruptedException
+     * @throws BlockNotFoundException
+     */
+    private byte[] fetchBlock(KadKey key) throws KademliaOperationException, InterruptedException, BlockNotFoundException {
+        byte[] cached = cacheService.getBlockIfCached(key);
+
+        if (cached != null) {
+            return cached; // Fetched by other reader just before
+        }
+
         if (s3) {
             byte[] blockData;
             try {
@@ -913,7 +1262,9 @@ public class DHTService {
 
         if (storageService.hasBlockLocal(key)) {
             try {
-                return storageService.getBlockLocal(key);
+                byte[] blockData = storageService.getBlockLocal(key);
+                this.cacheService.storeInMemory(key, blockData);
+                return blockData;
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -924,11 +1275,33 @@ public class DHTService {
         List<Node> closestNodes;
 
         try {
-            closestNodes = this.nodeLookup(key);
+            closestNodes = this.cachedNodeLookup(key);
+            byte[] content = this.readFromReplicas(key, closestNodes);
+            if (content == null && this.lookupCache.invalidate(key)) {
+                // The replicas may have changed since the cached lookup
+                content = this.readFromReplicas(key, this.cachedNodeLookup(key));
+            }
+            if (content != null) {
+                return content;
+            }
         } catch (TimeoutException e) {
             throw new KademliaOperationException("Node lookup timed out. Cannot find closest nodes to kad_key.");
         }
 
+        // All failed, block not found
+
+        throw new BlockNotFoundException();
+    }
+
+    /**
+     * Reads a block from one of its replicas.
+     *
+     * @param key          The block kad_key.
+     * @param closestNodes The closest nodes to the kad_key.
+     * @return The block content, or null if no replica has it.
+     * @throws KademliaOperationException If there are no nodes.
+     */
+    private byte[] readFromReplicas(KadKey key, List<Node> closestNodes) throws KademliaOperationException, InterruptedException {
         List<Node> replicaNodes = new ArrayList<>();
         for (int i = 0; i < closestNodes.size() && i < KademliaConfiguration.REPLICATION; i++) {
             replicaNodes.add(closestNodes.get(i));
@@ -938,89 +1311,194 @@ public class DHTService {
             throw new KademliaOperationException("FATAL ERROR: There are not on-line nodes in the network. Make sure the configuration is correct.");
         }
 
-        Collections.shuffle(replicaNodes); // Shuffle, choose a random replica
-
-        for (Node n : replicaNodes) {
-            Socket s;
+        replicaNodes = this.latencyTracker.rank(replicaNodes); // Fastest replica first
 
-            try {
-                s = n.openConnection();
-            } catch (Exception ex) {
-                System.out.println("[WARNING] Could not connect to node " + n.toString() + " / Reason: " + ex.getMessage());
-                continue;
-            }
+        // Hedged read: if a replica is slower than usual, ask the next one too and take the first answer
+        CompletionService<byte[]> reads = new ExecutorCompletionService<>(this.replicaReadExecutor);
+        List<Future<byte[]>> started = new ArrayList<>();
+        long hedgeDelay = this.latencyTracker.getHedgeDelay();
+        int next = 0;
+        int pending = 0;
 
-            try {
-                DataInputStream input = new DataInputStream(s.getInputStream());
-                DataOutputStream output = new DataOutputStream(s.getOutputStream());
-
-                // Receive IV
-                byte[] iv = new byte[16];
-                input.readFully(iv);
-                IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-
-                // Send READ
-                KadTCPMessage readMsg = KadTCPMessage.createReadMessage(key);
-                output.write(readMsg.serializeAndEncrypt(ivParameterSpec));
+        try {
+            started.add(reads.submit(readFromReplicaTask(replicaNodes.get(next++), key)));
+            pending++;
+
+            while (pending > 0) {
+                Future<byte[]> done;
+                if (next < replicaNodes.size()) {
+                    done = reads.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+                    if (done == null) {
+                        this.hedgedReads.incrementAndGet();
+                        started.add(reads.submit(readFromReplicaTask(replicaNodes.get(next++), key)));
+                        pending++;
+                        continue;
+                    }
+                } else {
+                    done = reads.take();
+                }
+                pending--;
 
-                // Receive STORE or ERROR
-                KadTCPMessage storeMsg = new KadTCPMessage();
-                storeMsg.readFromEncryptedStream(input, ivParameterSpec);
+                byte[] content = null;
+                try {
+                    content = done.get();
+                } catch (ExecutionException ex) {
+                    // Logged by the task
+                }
 
-                if (storeMsg.isStore() && storeMsg.getRequestKey().equals(key)) {
-                    try {
-                        s.close(); // Close connection
-                    } catch (Exception ex) {
+                if (content != null) {
+                    if (started.size() > 1 && done != started.get(0)) {
+                        this.hedgeWins.incrementAndGet();
                     }
                     // Store in cache
-                    this.cacheService.storeInCache(key, storeMsg.getContent());
-                    // Return the block
-                    return storeMsg.getContent();
-                } else {
-                    System.out.println("[WARNING] Block " + key.toString() + " not found in replica  " + n.toString());
                     try {
-                        s.close(); // Close connection
-                    } catch (Exception ex) {
+                        this.cacheService.storeInCache(key, content);
+                    } catch (IOException e) {
+                        e.printStackTrace();
                     }
+                    // Return the block
+                    return content;
                 }
-            } catch (Exception ex) {
-                try {
-                    s.close();
-                } catch (Exception e) {
+
+                if (pending == 0 && next < replicaNodes.size()) {
+                    // Failed or not found, try the next replica without waiting
+                    started.add(reads.submit(readFromReplicaTask(replicaNodes.get(next++), key)));
+                    pending++;
                 }
             }
+        } finally {
+            // The slower reads finish in background, so their connections stay usable
+            for (Future<byte[]> f : started) {
+                f.cancel(false);
+            }
         }
 
-        // All failed, block not found
+        return null;
+    }
 
-        throw new BlockNotFoundException();
+    private Callable<byte[]> readFromReplicaTask(Node n, KadKey key) {
+        return () -> {
+            long start = System.currentTimeMillis();
+            byte[] content;
+            try {
+                content = peerConnectionPool.read(n, key);
+            } catch (IOException ex) {
+                this.latencyTracker.recordFailure(n, System.currentTimeMillis() - start);
+                System.out.println("[WARNING] Could not read from node " + n.toString() + " / Reason: " + ex.getMessage());
+                throw ex;
+            }
+            this.latencyTracker.recordSuccess(n, System.currentTimeMillis() - start);
+            if (content == null) {
+                System.out.println("[WARNING] Block " + key.toString() + " not found in replica  " + n.toString());
+            }
+            return content;
+        };
+    }
+
+    /**
+     * @return The observed latency of the replicas.
+     */
+    public PeerLatencyTracker getLatencyTracker() {
+        return this.latencyTracker;
+    }
+
+    /**
+     * @return The number of reads sent to a second replica because the first one was slow.
+     */
+    public long getHedgedReadCount() {
+        return this.hedgedReads.get();
+    }
+
+    /**
+     * @return The number of hedged reads answered first by a later replica.
+     */
+    public long getHedgeWinCount() {
+        return this.hedgeWins.get();
+    }
+
+    /**
+     * Finds and reads a block from the DHT.
+     * Blocks in the memory cache are not copied, they are returned as a read-only view.
+     *
+     * @param key The block kad_key.
+     * @return The block content.
+     * @throws KademliaOperationException
+     * @throws InterruptedException
+     * @throws BlockNotFoundException
+     */
+    public ByteBuffer readBlockBufferFromDHT(KadKey key) throws KademliaOperationException, InterruptedException, BlockNotFoundException {
+        ByteBuffer cached = cacheService.getBufferIfCached(key);
+        if (cached != null) {
+            return cached;
+        }
+        return ByteBuffer.wrap(this.readBlockFromDHT(key));
+    }
+
+    /**
+     * Starts reading a block from the DHT in background.
+     *
+     * @param key The block kad_key.
+     * @return The future block content.
+     * @throws RejectedExecutionException If there are too many reads pending.
+     */
+    public Future<ByteBuffer> readBlockFromDHTAsync(KadKey key) {
+        return blockReadExecutor.submit(() -> readBlockBufferFromDHT(key));
     }
 
     /**
      * Gets a block as a video index.
+     * Decoded indexes are cached, and they are always read completely so any caller can use them.
      *
-     * @param key      The block kad_key
-     * @param complete True for complete read, false for min read.
-     * @return The video index.
+     * @param key The block kad_key
+     * @return The video index. Shared with other callers, must not be modified.
      * @throws InterruptedException
      * @throws KademliaOperationException
      * @throws BlockNotFoundException
      * @throws IOException
      */
-    public VideoIndex getVideoIndex(KadKey key, boolean complete) throws InterruptedException, KademliaOperationException, BlockNotFoundException, IOException {
+    public VideoIndex getVideoIndex(KadKey key) throws InterruptedException, KademliaOperationException, BlockNotFoundException, IOException {
+        VideoIndex cached = videoIndexCache.getIndex(key);
+        if (cached != null) {
+            return cached;
+        }
         byte[] block = this.readBlockFromDHT(key);
         ByteArrayInputStream bin = new ByteArrayInputStream(block, 0, block.length);
         DataInputStream din = new DataInputStream(bin);
         VideoIndex vi = new VideoIndex();
-        if (complete) {
-            vi.readComplete(din);
-        } else {
-            vi.readMin(din);
-        }
+        vi.readComplete(din);
+        videoIndexCache.putIndex(key, vi);
         return vi;
     }
 
+    /**
+     * Gets the schema of a video.
+     *
+     * @param index The video index.
+     * @return The parsed schema (shared, must not be modified), or null if the video has no schema.
+     * @throws InterruptedException
+     * @throws KademliaOperationException
+     * @throws BlockNotFoundException
+     */
+    public JsonNode getVideoSchema(VideoIndex index) throws InterruptedException, KademliaOperationException, BlockNotFoundException {
+        KadKey schemaKey = index.getSchemaBlock();
+        if (schemaKey.equals(KadKey.zero())) {
+            return null;
+        }
+        JsonNode cached = videoIndexCache.getSchema(schemaKey);
+        if (cached != null) {
+            return cached;
+        }
+        JsonNode schema = Json.parse(new String(this.readBlockFromDHT(schemaKey)));
+        videoIndexCache.putSchema(schemaKey, schema);
+        return schema;
+    }
+
+    public VideoIndexCache getVideoIndexCache() {
+        return videoIndexCache;
+    }
+
     private void deleteBlockLocal(KadKey key) {
+        this.cacheService.removeFromCache(key);
         if (s3) {
             s3StorageService.deleteBlockLocal(key);
         } else if (ipfs) {
@@ -1038,6 +1516,7 @@ public class DHTService {
      * @param videoIndex The video index information
      */
     public void eraseVideoFromStorage(KadKey key, VideoIndex videoIndex) {
+        this.videoIndexCache.invalidate(key);
         this.deleteBlockLocal(key);
         if (!videoIndex.getPreviewBlock().equals(KadKey.zero())) {
             this.deleteBlockLocal(videoIndex.getPreviewBlock());
@@ -1064,11 +1543,23 @@ public class DHTService {
 
     public void shutdown() {
         ended = true;
-        try {
-            serverTCP.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+        scheduler.shutdownNow();
+        synchronized (this) {
+            if (publishWalker != null) {
+                publishWalker.shutdown();
+            }
+            if (purgeWalker != null) {
+                purgeWalker.shutdown();
+            }
         }
+        timeouts.stop();
+        replyExecutor.shutdownNow();
+        blockReadExecutor.shutdownNow();
+        uploadExecutor.shutdownNow();
+        replicaReadExecutor.shutdownNow();
+        storeExecutor.shutdownNow();
+        peerConnectionPool.close();
+        serverTCP.close();
         serverUDP.close();
     }
 }
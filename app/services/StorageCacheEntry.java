@@ -10,11 +10,21 @@ import java.nio.file.Path;
 public class StorageCacheEntry implements Comparable<StorageCacheEntry> {
     private final KadKey key;
     private final Path filePath;
-    private long lastUsage;
+    private final long size;
+    private volatile long lastUsage;
+    private volatile boolean verified;
 
-    public StorageCacheEntry(KadKey key, Path filePath) {
+    /**
+     * @param key The block kad_key.
+     * @param filePath The cache file.
+     * @param size The block size in bytes.
+     * @param verified False if the file content must be validated before using it.
+     */
+    public StorageCacheEntry(KadKey key, Path filePath, long size, boolean verified) {
         this.key = key;
         this.filePath = filePath;
+        this.size = size;
+        this.verified = verified;
         this.lastUsage = System.currentTimeMillis();
     }
 
@@ -35,6 +45,13 @@ public class StorageCacheEntry implements Comparable<StorageCacheEntry> {
         return filePath;
     }
 
+    /**
+     * @return The block size in bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
     public long getLastUsage() {
         return lastUsage;
     }
@@ -42,4 +59,12 @@ public class StorageCacheEntry implements Comparable<StorageCacheEntry> {
     public void setLastUsage(long lastUsage) {
         this.lastUsage = lastUsage;
     }
+
+    public boolean isVerified() {
+        return verified;
+    }
+
+    public void setVerified(boolean verified) {
+        this.verified = verified;
+    }
 }
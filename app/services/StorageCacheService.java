@@ -1,54 +1,134 @@
 package services;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalNotification;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import services.kademlia.KadKey;
+import services.kademlia.KademliaConfiguration;
+import services.videos.VideoIndex;
 import utils.StorageConfiguration;
 import utils.StoragePaths;
 
 import javax.inject.Singleton;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.TreeSet;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Cache service
+ * Cache service.
+ * The index is a lock-striped LRU cache bounded by the total size of the cached blocks.
+ * Block files are read and written outside the index locks, evicted files are deleted.
+ * Hot blocks are also kept in an off-heap memory tier, in front of the disk.
+ * Cache files are named by block kad_key, so the disk tier is recovered after a restart.
  */
 @Singleton
 public class StorageCacheService {
 
-    private final int cacheSize;
+    private static final int CONCURRENCY_LEVEL = 16;
 
-    private long nextCache;
+    private static final long DEFAULT_MEMORY_BYTES = 64L * 1024 * 1024;
 
-    private final Map<KadKey, StorageCacheEntry> mapEntries;
-    private final TreeSet<StorageCacheEntry> cache;
+    private static final String CACHE_EXTENSION = ".cache";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private final long cacheBytes;
+
+    private final AtomicLong nextTemp;
+
+    private final Cache<KadKey, StorageCacheEntry> cache;
+
+    private final StorageMemoryCache memory;
 
     public StorageCacheService() {
         StorageConfiguration.load();
-        this.mapEntries = new TreeMap<>();
-        this.cache = new TreeSet<>();
         Config config = ConfigFactory.load();
-        cacheSize = config.getInt("storage.cache.size");
-        nextCache = 0;
+        if (config.hasPath("storage.cache.bytes")) {
+            cacheBytes = config.getBytes("storage.cache.bytes");
+        } else {
+            cacheBytes = config.getLong("storage.cache.size") * VideoIndex.FIXED_VIDEO_BLOCK_SIZE;
+        }
+        long maxBlockSize = config.hasPath("kademlia.block.size") ? config.getBytes("kademlia.block.size") : KademliaConfiguration.MAX_BLOCK_SIZE;
+        if (config.hasPath("storage.cache.memory")) {
+            memory = new StorageMemoryCache(config.getBytes("storage.cache.memory"), maxBlockSize);
+        } else {
+            memory = new StorageMemoryCache(DEFAULT_MEMORY_BYTES, maxBlockSize);
+        }
+        nextTemp = new AtomicLong(0);
+        cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(CONCURRENCY_LEVEL)
+                .maximumWeight(cacheBytes)
+                .weigher((KadKey key, StorageCacheEntry entry) -> (int) Math.min(Integer.MAX_VALUE, entry.getSize()))
+                .removalListener(this::onRemoval)
+                .recordStats()
+                .build();
+        this.loadCacheIndex();
     }
 
     /**
-     * Gets a temporal file for storing a cache block.
-     * @return The temporal file path.
+     * Rebuilds the index from the cache files left by the previous execution.
+     * Files are added from least to most recently used, so the LRU order is kept.
+     * Their content is validated when they are read for the first time.
      */
-    public synchronized Path nextCachePath() {
-        nextCache++;
-        if (nextCache < 0) {
-            nextCache = 0;
+    private void loadCacheIndex() {
+        File[] files = StoragePaths.getCacheStoragePath().toFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> cacheFiles = new ArrayList<>();
+        for (File file : files) {
+            KadKey key = keyForFileName(file.getName());
+            if (key != null && file.isFile() && file.length() > 0) {
+                cacheFiles.add(file);
+            } else {
+                file.delete(); // Unfinished writes and files from older versions
+            }
+        }
+        cacheFiles.sort(Comparator.comparingLong(File::lastModified));
+        for (File file : cacheFiles) {
+            KadKey key = keyForFileName(file.getName());
+            StorageCacheEntry entry = new StorageCacheEntry(key, file.toPath(), file.length(), false);
+            entry.setLastUsage(file.lastModified());
+            cache.put(key, entry);
+        }
+        if (!cacheFiles.isEmpty()) {
+            System.out.println("[CACHE] Recovered " + cache.size() + " cached blocks.");
         }
-        return StoragePaths.getCacheStoragePath().resolve("" + nextCache + ".cache");
+    }
+
+    /**
+     * @param fileName The name of a file in the cache directory.
+     * @return The kad_key of the cached block, or null if it is not a cache file.
+     */
+    private static KadKey keyForFileName(String fileName) {
+        if (!fileName.endsWith(CACHE_EXTENSION) || fileName.length() != 64 + CACHE_EXTENSION.length()) {
+            return null;
+        }
+        try {
+            return KadKey.fromHex(fileName.substring(0, 64));
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the file for storing a cache block.
+     * @param key The block kad_key.
+     * @return The file path.
+     */
+    public Path getCachePath(KadKey key) {
+        return StoragePaths.getCacheStoragePath().resolve(key.toString() + CACHE_EXTENSION);
     }
 
     /**
@@ -56,8 +136,22 @@ public class StorageCacheService {
      * @param key The block kad_key.
      * @return True if the block is in the cache.
      */
-    public synchronized boolean hasBlock(KadKey key) {
-        return mapEntries.containsKey(key);
+    public boolean hasBlock(KadKey key) {
+        return memory.contains(key) || cache.asMap().containsKey(key);
+    }
+
+    /**
+     * Gets a block from the cache, without copying it if it is in the memory tier.
+     * @param key The block kad_key.
+     * @return The block content, or null. Read-only if it is in the memory tier.
+     */
+    public ByteBuffer getBufferIfCached(KadKey key) {
+        ByteBuffer buffer = memory.get(key);
+        if (buffer != null) {
+            return buffer;
+        }
+        byte[] content = this.getBlockFromDisk(key);
+        return content == null ? null : ByteBuffer.wrap(content);
     }
 
     /**
@@ -65,16 +159,46 @@ public class StorageCacheService {
      * @param key The block kad_key.
      * @return The block content, or null.
      */
-    public synchronized byte[] getBlockIfCached(KadKey key) {
-        if (mapEntries.containsKey(key)) {
-            mapEntries.get(key).updateLastUsageNow();
-            try {
-                return Files.readAllBytes(mapEntries.get(key).getFilePath());
-            } catch (IOException e) {
-                e.printStackTrace();
-                return null;
+    public byte[] getBlockIfCached(KadKey key) {
+        ByteBuffer buffer = memory.get(key);
+        if (buffer != null) {
+            byte[] content = new byte[buffer.remaining()];
+            buffer.get(content);
+            return content;
+        }
+        return this.getBlockFromDisk(key);
+    }
+
+    /**
+     * Gets a block from the disk tier, and promotes it to the memory tier.
+     * @param key The block kad_key.
+     * @return The block content, or null.
+     */
+    private byte[] getBlockFromDisk(KadKey key) {
+        byte[] content;
+        StorageCacheEntry entry = cache.getIfPresent(key);
+        if (entry == null) {
+            return null;
+        }
+        entry.updateLastUsageNow();
+        try {
+            content = Files.readAllBytes(entry.getFilePath());
+            if (!entry.isVerified()) {
+                if (!key.validateForContent(content)) {
+                    cache.asMap().remove(key, entry); // Corrupted file, the listener deletes it
+                    return null;
+                }
+                entry.setVerified(true);
             }
-        } else {
+            entry.getFilePath().toFile().setLastModified(entry.getLastUsage()); // Keep the LRU order for restarts
+            memory.put(key, content); // Promote, it is being read again
+            return content;
+        } catch (NoSuchFileException e) {
+            cache.asMap().remove(key, entry); // Evicted while reading
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            cache.asMap().remove(key, entry);
             return null;
         }
     }
@@ -85,38 +209,108 @@ public class StorageCacheService {
      * @param content the block content.
      * @throws IOException
      */
-    public synchronized void storeInCache(KadKey key, byte[] content) throws IOException {
-        if (mapEntries.containsKey(key)) {
-            StorageCacheEntry entry = mapEntries.get(key);
-            cache.remove(entry);
-            entry.updateLastUsageNow();
-            cache.add(entry);
-            return; // Already cached.
+    public void storeInCache(KadKey key, byte[] content) throws IOException {
+        memory.put(key, content);
+        if (cache.getIfPresent(key) != null) {
+            return; // Already cached (the lookup marks it as recently used).
+        }
+        if (content.length > cacheBytes) {
+            return; // Would evict the entire cache
+        }
+
+        // Written to a temporal file and then moved, so an interrupted write never leaves a truncated cache file
+        StorageCacheEntry entry = new StorageCacheEntry(key, this.getCachePath(key), content.length, true);
+        Path temp = StoragePaths.getCacheStoragePath().resolve(key.toString() + "." + nextTemp.incrementAndGet() + TEMP_EXTENSION);
+        try (FileOutputStream fos = new FileOutputStream(temp.toFile())) {
+            fos.write(content);
+        } catch (IOException ex) {
+            temp.toFile().delete();
+            throw ex;
+        }
+        try {
+            Files.move(temp, entry.getFilePath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            temp.toFile().delete();
+            throw ex;
+        }
+
+        // If other thread cached it concurrently, both wrote the same content to the same file
+        cache.asMap().putIfAbsent(key, entry);
+    }
+
+    /**
+     * Stores a block only in the memory tier.
+     * Used for blocks that are already on disk (local storage), to avoid re-reading them.
+     * @param key The block kad_key.
+     * @param content The block content.
+     */
+    public void storeInMemory(KadKey key, byte[] content) {
+        memory.put(key, content);
+    }
+
+    /**
+     * Removes a block from both tiers of the cache.
+     * @param key The block kad_key.
+     */
+    public void removeFromCache(KadKey key) {
+        memory.remove(key);
+        cache.invalidate(key);
+    }
+
+    /**
+     * Deletes the files of the entries removed from the index.
+     * Called after the index locks are released.
+     */
+    private void onRemoval(RemovalNotification<KadKey, StorageCacheEntry> notification) {
+        StorageCacheEntry entry = notification.getValue();
+        if (entry != null) {
+            entry.getFilePath().toFile().delete();
         }
-        if (cache.size() >= cacheSize) {
-            // Cache is filled, must remove the least recently used
+    }
 
-            // TODO: DELETE
-            mapEntries.remove(cache.pollFirst().getKey());
+    /**
+     * @return The total size of the cached blocks, in bytes.
+     */
+    public long getCachedBytes() {
+        long total = 0;
+        for (StorageCacheEntry entry : cache.asMap().values()) {
+            total += entry.getSize();
         }
-        StorageCacheEntry entry = new StorageCacheEntry(key, this.nextCachePath());
-        cache.add(entry);
-        mapEntries.put(key, entry);
-        File file = entry.getFilePath().toFile();
-        FileOutputStream fos = new FileOutputStream(file);
-        fos.write(content);
-        fos.close();
+        return total;
+    }
+
+    /**
+     * @return The max size of the cache, in bytes.
+     */
+    public long getCapacity() {
+        return cacheBytes;
+    }
+
+    /**
+     * @return Hits, misses and evictions of the disk tier.
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    /**
+     * @return The memory tier.
+     */
+    public StorageMemoryCache getMemoryCache() {
+        return memory;
     }
 
     /**
      * Clears the cache.
      */
-    public synchronized void clearCache() {
+    public void clearCache() {
+        this.memory.clear();
+        this.cache.invalidateAll();
         File[] files = StoragePaths.getCacheStoragePath().toFile().listFiles();
-        for (File file : files) {
-            file.delete();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
         }
-        this.mapEntries.clear();
-        this.cache.clear();
     }
 }
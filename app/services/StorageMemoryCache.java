@@ -0,0 +1,106 @@
+package services;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import services.kademlia.KadKey;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Memory tier of the storage cache.
+ * Blocks are kept in direct buffers, outside the Java heap, so they add no GC pressure.
+ * Hits return a read-only view of the buffer, the content is not copied to the heap.
+ * The buffers memory is released when the evicted buffers are collected.
+ */
+public class StorageMemoryCache {
+
+    private static final int MAX_CONCURRENCY_LEVEL = 16;
+
+    private final long capacity;
+
+    private final Cache<KadKey, ByteBuffer> cache;
+
+    /**
+     * @param capacity Max size of the cached blocks, in bytes. 0 disables the memory tier.
+     * @param maxBlockSize Max size of a block, in bytes.
+     */
+    public StorageMemoryCache(long capacity, long maxBlockSize) {
+        if (capacity > 0 && capacity < maxBlockSize) {
+            throw new IllegalArgumentException("The memory cache must fit at least one block (" + maxBlockSize + " bytes).");
+        }
+        this.capacity = Math.max(0, capacity);
+        this.cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(concurrencyLevel(this.capacity, maxBlockSize))
+                .maximumWeight(this.capacity)
+                .weigher((KadKey key, ByteBuffer buffer) -> buffer.capacity())
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * The weight limit is split between the segments, and an entry heavier than its segment
+     * limit is evicted as soon as it is inserted. So every segment must fit a full block.
+     * @param capacity Max size of the cached blocks, in bytes.
+     * @param maxBlockSize Max size of a block, in bytes.
+     * @return The concurrency level (a power of two, the number of segments)
+     */
+    private static int concurrencyLevel(long capacity, long maxBlockSize) {
+        long blocks = Math.min(MAX_CONCURRENCY_LEVEL, capacity / Math.max(1, maxBlockSize));
+        return Math.max(1, Integer.highestOneBit((int) blocks));
+    }
+
+    /**
+     * Gets a block.
+     * @param key The block kad_key.
+     * @return A read-only view of the block content, or null. Its position is not shared with other readers.
+     */
+    public ByteBuffer get(KadKey key) {
+        ByteBuffer buffer = cache.getIfPresent(key);
+        if (buffer == null) {
+            return null;
+        }
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Stores a block.
+     * @param key The block kad_key.
+     * @param content The block content.
+     */
+    public void put(KadKey key, byte[] content) {
+        if (content.length == 0 || content.length > capacity || cache.getIfPresent(key) != null) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+        buffer.put(content);
+        buffer.flip();
+        cache.asMap().putIfAbsent(key, buffer);
+    }
+
+    public boolean contains(KadKey key) {
+        return cache.asMap().containsKey(key);
+    }
+
+    public void remove(KadKey key) {
+        cache.invalidate(key);
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * @return The max size of the memory tier, in bytes.
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Hits, misses and evictions.
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+}
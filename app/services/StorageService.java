@@ -9,8 +9,11 @@ import javax.inject.Singleton;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -38,6 +41,18 @@ public class StorageService {
         KadBlock.store(key.toString(), content.length);
     }
 
+    /**
+     * Stores a block in the local filesystem, from a file received in parts.
+     * @param key The block kad_key.
+     * @param contentFile The file with the block content, it is moved. Must be in the same filesystem.
+     * @throws IOException
+     */
+    public void storeBlockLocal(KadKey key, Path contentFile) throws IOException {
+        long size = Files.size(contentFile);
+        Files.move(contentFile, this.getBlockPath(key, true), StandardCopyOption.REPLACE_EXISTING);
+        KadBlock.store(key.toString(), size);
+    }
+
     /**
      * Checks if a block is stored locally.
      * @param key The block kad_key.
@@ -57,6 +72,16 @@ public class StorageService {
         return Files.readAllBytes(this.getBlockPath(key));
     }
 
+    /**
+     * Opens a block stored locally, for reading it in parts.
+     * @param key The block kad_key.
+     * @return The file channel. Must be closed by the caller.
+     * @throws IOException
+     */
+    public FileChannel openBlockLocal(KadKey key) throws IOException {
+        return FileChannel.open(this.getBlockPath(key), StandardOpenOption.READ);
+    }
+
     /**
      * Deletes a block stored locally.
      * @param key The block kad_key.
@@ -89,13 +114,13 @@ public class StorageService {
     }
 
     /**
-     * Lists the stored blocks, paginated
-     * @param offset The offset
+     * Lists the stored blocks, paginated by kad_key
+     * @param after The last kad_key of the previous page, null for the first page.
      * @param limit The limit
-     * @return The list of keys
+     * @return The list of keys, ordered
      */
-    public List<KadKey> listStoredKeys(int offset, int limit) {
-        List<KadBlock> blocks = KadBlock.getPage(offset, limit);
+    public List<KadKey> listStoredKeys(KadKey after, int limit) {
+        List<KadBlock> blocks = KadBlock.getPageAfter(after == null ? null : after.toString(), limit);
         List<KadKey> result = new ArrayList<>();
         for (KadBlock b : blocks) {
             result.add(b.getKadKey());
@@ -0,0 +1,180 @@
+package services.kademlia;
+
+import services.DHTService;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores the blocks of a video in the DHT, several at the same time.
+ * The key of a block only depends on its content, so submit() returns it at once and the block
+ * is stored in the background. submit() blocks while the max number of blocks are in flight,
+ * so the memory used is bounded.
+ */
+public class BlockUploader {
+
+    /**
+     * Receives the progress of the upload.
+     */
+    public interface ProgressListener {
+        /**
+         * Called every time a block is stored.
+         * @param storedBytes The total bytes stored.
+         */
+        void onStored(long storedBytes);
+    }
+
+    private final DHTService dht;
+    private final ExecutorService executor;
+    private final KadKey videoKey;
+    private final int maxInFlight;
+    private final Semaphore slots;
+    private final ProgressListener listener;
+    private final Set<StoreTask> inFlight;
+
+    private final AtomicLong storedBytes;
+    private final AtomicLong storedBlocks;
+    private volatile Exception failure;
+
+    /**
+     * @param dht The DHT service.
+     * @param executor Runs the block stores.
+     * @param videoKey The video kad_key.
+     * @param maxInFlight Max blocks being stored at the same time.
+     * @param listener Receives the progress, can be null.
+     */
+    public BlockUploader(DHTService dht, ExecutorService executor, KadKey videoKey, int maxInFlight, ProgressListener listener) {
+        this.dht = dht;
+        this.executor = executor;
+        this.videoKey = videoKey;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.slots = new Semaphore(this.maxInFlight);
+        this.listener = listener;
+        this.inFlight = ConcurrentHashMap.newKeySet();
+        this.storedBytes = new AtomicLong(0);
+        this.storedBlocks = new AtomicLong(0);
+        this.failure = null;
+    }
+
+    /**
+     * Starts storing a block.
+     * @param content The block content. It must not be modified after the call.
+     * @param part The block number in the video.
+     * @return The block kad_key.
+     * @throws KademliaOperationException If a previous block could not be stored.
+     * @throws InterruptedException
+     */
+    public KadKey submit(byte[] content, long part) throws KademliaOperationException, InterruptedException {
+        checkFailure();
+        KadKey key = KadKey.getKeyForBlock(videoKey, content, part);
+
+        slots.acquire();
+        StoreTask task = new StoreTask(key, content);
+        try {
+            inFlight.removeIf(Future::isDone);
+            inFlight.add(task);
+            executor.execute(task);
+        } catch (RuntimeException ex) {
+            inFlight.remove(task);
+            slots.release();
+            throw ex;
+        }
+
+        return key;
+    }
+
+    /**
+     * Waits for all the submitted blocks.
+     * @throws KademliaOperationException If a block could not be stored.
+     * @throws InterruptedException
+     */
+    public void await() throws KademliaOperationException, InterruptedException {
+        while (!slots.tryAcquire(maxInFlight, 1, TimeUnit.SECONDS)) {
+            if (executor.isShutdown()) {
+                cancel(); // The blocks still queued will never run
+            }
+        }
+        slots.release(maxInFlight);
+        checkFailure();
+    }
+
+    /**
+     * Stops storing the blocks in flight.
+     */
+    public void cancel() {
+        for (StoreTask f : inFlight) {
+            f.cancel(true);
+        }
+        inFlight.clear();
+    }
+
+    /**
+     * The block is stored even if the progress cannot be reported.
+     */
+    private void notifyProgress(long stored) {
+        try {
+            listener.onStored(stored);
+        } catch (RuntimeException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private void checkFailure() throws KademliaOperationException {
+        Exception ex = failure;
+        if (ex != null) {
+            String reason = ex instanceof InterruptedException ? "Interrupted" : ex.getMessage();
+            throw new KademliaOperationException("Could not store a block of the video / Reason: " + reason);
+        }
+    }
+
+    /**
+     * Stores a block. The slot is released when it finishes, fails or is cancelled, even before running.
+     */
+    private class StoreTask extends FutureTask<Void> {
+        private StoreTask(KadKey key, byte[] content) {
+            super(() -> {
+                try {
+                    dht.storeBlockWithRetry(key, content);
+                    storedBlocks.incrementAndGet();
+                    long stored = storedBytes.addAndGet(content.length);
+                    if (listener != null) {
+                        notifyProgress(stored);
+                    }
+                } catch (Exception ex) {
+                    // Interrupted too (cancelled or the node stopping): the block was not stored
+                    failure = ex;
+                }
+                return null;
+            });
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled() && failure == null) {
+                failure = new CancellationException("Cancelled");
+            }
+            slots.release();
+        }
+    }
+
+    /**
+     * @return The bytes stored.
+     */
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    /**
+     * @return The blocks stored.
+     */
+    public long getStoredBlocks() {
+        return storedBlocks.get();
+    }
+}
@@ -65,14 +65,18 @@ public class Contact extends Node implements Comparable<Contact> {
      */
     public void setSeenNow()
     {
-        this.lastSeen = System.currentTimeMillis() / 1000L;
+        this.lastSeen = System.currentTimeMillis();
     }
 
+    /**
+     * Orders by last seen, then by identifier (0 only for the same node, consistent with equals)
+     */
     @Override
     public int compareTo(Contact o) {
         if (this.equals(o)) {
             return 0;
         }
-        return (this.lastSeen > o.lastSeen) ? 1 : -1;
+        int c = Long.compare(this.lastSeen, o.lastSeen);
+        return c != 0 ? c : this.getIdentifier().compareTo(o.getIdentifier());
     }
 }
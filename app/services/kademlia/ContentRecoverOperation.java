@@ -2,10 +2,7 @@ package services.kademlia;
 
 import services.DHTService;
 
-import javax.crypto.spec.IvParameterSpec;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.net.Socket;
+import java.io.IOException;
 
 /**
  * Content recover operation. Recovers a block from other peer.
@@ -24,45 +21,24 @@ public class ContentRecoverOperation extends Thread {
 
     @Override
     public void run() {
-        Socket s;
+        byte[] content;
 
         try {
-            s = this.node.openConnection();
-            s.setSoTimeout((int)KademliaConfiguration.RESPONSE_TIMEOUT);
+            content = dht.getPeerConnectionPool().read(this.node, this.key);
         } catch (Exception ex) {
-            System.out.println("[WARNING] Could not connect to node " + this.node.toString() + " / Reason: " + ex.getMessage());
+            System.out.println("[WARNING] Could not recover block from node " + this.node.toString() + " / Reason: " + ex.getMessage());
             return;
         }
 
-        try {
-            DataInputStream input = new DataInputStream(s.getInputStream());
-            DataOutputStream output = new DataOutputStream(s.getOutputStream());
-
-            // Receive IV
-            byte[] iv = new byte[16];
-            input.readFully(iv);
-            IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-
-            // Send READ
-            KadTCPMessage readMsg = KadTCPMessage.createReadMessage(this.key);
-            output.write(readMsg.serializeAndEncrypt(ivParameterSpec));
-
-            // Receive STORE or ERROR
-            KadTCPMessage storeMsg = new KadTCPMessage();
-            storeMsg.readFromEncryptedStream(input, ivParameterSpec);
-
-            if (storeMsg.isStore() && storeMsg.getRequestKey().equals(this.key)) {
-                // Store the message
-                dht.storageService.storeBlockLocal(storeMsg.getRequestKey(), storeMsg.getContent());
-            } else {
-                System.out.println("[ERROR] Block not found when recovering content (Fraudulent announce?). From node: " + this.node.toString());
-            }
-
-            s.close(); // Close connection
-        } catch (Exception ex) {
+        if (content != null) {
+            // Store the block
             try {
-                s.close();
-            } catch (Exception e) {}
+                dht.storageService.storeBlockLocal(this.key, content);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        } else {
+            System.out.println("[ERROR] Block not found when recovering content (Fraudulent announce?). From node: " + this.node.toString());
         }
     }
 }
@@ -2,17 +2,14 @@ package services.kademlia;
 
 import services.DHTService;
 
-import javax.crypto.spec.IvParameterSpec;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.Socket;
-import java.nio.channels.SocketChannel;
+import java.util.concurrent.Callable;
 
 /**
- * Content storage operation.
+ * Content storage operation, stores a block in a replica.
+ * The result is true if the block was stored.
  */
-public class ContentStorageOperation extends Thread {
+public class ContentStorageOperation implements Callable<Boolean> {
     private DHTService dht;
     private Node node;
     private KadKey key;
@@ -26,46 +23,24 @@ public class ContentStorageOperation extends Thread {
     }
 
     @Override
-    public void run() {
+    public Boolean call() {
         if (this.node.equals(this.dht.getLocalNode())) {
             // Local node, store locally
             try {
                 this.dht.storageService.storeBlockLocal(this.key, this.content);
+                return true;
             } catch (IOException e) {
                 e.printStackTrace();
             }
         } else {
-            // Send the block to remote node
-            // First, connect to it
-            Socket s;
-
+            // Send the block to remote node, through a pooled connection
             try {
-                s = node.openConnection();
-                s.setSoTimeout((int)KademliaConfiguration.RESPONSE_TIMEOUT);
+                this.dht.getPeerConnectionPool().store(this.node, this.key, this.content);
+                return true;
             } catch (IOException ex) {
-                System.out.println("[ERROR] Could not connect to node " + this.node.toString() + " / Reason: " + ex.getMessage());
-                return;
-            }
-
-            try {
-                DataInputStream input = new DataInputStream(s.getInputStream());
-                DataOutputStream output = new DataOutputStream(s.getOutputStream());
-
-                // Receive IV
-                byte[] iv = new byte[16];
-                input.readFully(iv);
-                IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-
-                // Send STORE
-                KadTCPMessage storeMsg = KadTCPMessage.createStoreMessage(this.key, this.content);
-                output.write(storeMsg.serializeAndEncrypt(ivParameterSpec));
-
-                s.close(); // Close connection
-            } catch (Exception ex) {
-                try {
-                    s.close();
-                } catch (Exception e) {}
+                System.out.println("[ERROR] Could not store block in node " + this.node.toString() + " / Reason: " + ex.getMessage());
             }
         }
+        return false;
     }
 }
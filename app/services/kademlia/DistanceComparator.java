@@ -1,6 +1,5 @@
 package services.kademlia;
 
-import java.math.BigInteger;
 import java.util.Comparator;
 
 /**
@@ -8,20 +7,14 @@ import java.util.Comparator;
  */
 public class DistanceComparator implements Comparator<Node> {
 
-    private final BigInteger key;
+    private final KadKey key;
 
     public DistanceComparator(KadKey key) {
-        this.key = key.getBigInteger();
+        this.key = key;
     }
 
     @Override
     public int compare(Node o1, Node o2) {
-        BigInteger b1 = o1.getIdentifier().getBigInteger();
-        BigInteger b2 = o2.getIdentifier().getBigInteger();
-
-        b1 = b1.xor(key);
-        b2 = b2.xor(key);
-
-        return b1.abs().compareTo(b2.abs());
+        return key.compareDistance(o1.getIdentifier(), o2.getIdentifier());
     }
 }
@@ -7,39 +7,43 @@ import java.util.*;
 
 /**
  * Represents a bucket in the Kademlia routing table.
+ * Contacts are kept by node id in access order: the least recently seen first,
+ * a contact seen again moves to the end.
  */
 public class KBucket {
     private final int depth;
 
-    private final TreeSet<Contact> contacts;
+    private final LinkedHashMap<KadKey, Contact> contacts;
 
-    private final TreeSet<Contact> replacementCache;
+    private final LinkedHashMap<KadKey, Contact> replacementCache;
 
     public KBucket(int depth) {
         this.depth = depth;
-        this.contacts = new TreeSet<>();
-        this.replacementCache = new TreeSet<>();
+        this.contacts = new LinkedHashMap<>();
+        this.replacementCache = new LinkedHashMap<>();
     }
 
     /**
      * Insers a contact in the bucket.
      * @param c The contact.
+     * @return True if the contact is new in the bucket (not updated nor sent to the replacement cache)
      */
-    public synchronized void insert(Contact c) {
-        if (this.contacts.contains(c)) {
-            Contact cont = this.removeFromContacts(c);
+    public synchronized boolean insert(Contact c) {
+        Contact cont = this.contacts.remove(c.getIdentifier());
+        if (cont != null) {
             if (cont.getLastSeen() < c.getLastSeen()) {
                 cont.setLastSeen(c.getLastSeen());
                 cont.resetStaleCount();
             }
-            this.contacts.add(cont);
+            this.contacts.put(cont.getIdentifier(), cont); // Move to the end, most recently seen
+            return false;
         } else {
             /* If the bucket is filled, so put the contacts in the replacement cache */
             if (contacts.size() >= KademliaConfiguration.K)
             {
                 /* If the cache is empty, we check if any contacts are stale and replace the stalest one */
                 Contact stalest = null;
-                for (Contact tmp : this.contacts)
+                for (Contact tmp : this.contacts.values())
                 {
                     if (tmp.getStaleCount() >= KademliaConfiguration.STALE)
                     {
@@ -58,18 +62,23 @@ public class KBucket {
                 /* If we have a stale contact, remove it and add the new contact to the bucket */
                 if (stalest != null)
                 {
-                    this.contacts.remove(stalest);
-                    this.contacts.add(c);
+                    this.contacts.remove(stalest.getIdentifier());
+                    this.replacementCache.remove(c.getIdentifier());
+                    this.contacts.put(c.getIdentifier(), c);
+                    return true;
                 }
                 else
                 {
                     /* No stale contact, lets insert this into replacement cache */
                     this.insertIntoReplacementCache(c);
+                    return false;
                 }
             }
             else
             {
-                this.contacts.add(c);
+                this.replacementCache.remove(c.getIdentifier());
+                this.contacts.put(c.getIdentifier(), c);
+                return true;
             }
         }
     }
@@ -80,13 +89,11 @@ public class KBucket {
      * @return The found contact.
      */
     public synchronized Contact getFromContacts(Contact c) {
-        for (Contact cont : this.contacts) {
-            if (cont.equals(c)) {
-                return cont;
-            }
+        Contact cont = this.contacts.get(c.getIdentifier());
+        if (cont == null) {
+            throw new NoSuchElementException("The contact does not exist in the contacts list.");
         }
-
-        throw new NoSuchElementException("The contact does not exist in the contacts list.");
+        return cont;
     }
 
     /**
@@ -95,14 +102,11 @@ public class KBucket {
      * @return The removed contact.
      */
     public synchronized Contact removeFromContacts(Contact c) {
-        for (Contact cont : this.contacts) {
-            if (cont.equals(c)) {
-                this.contacts.remove(cont);
-                return cont;
-            }
+        Contact cont = this.contacts.remove(c.getIdentifier());
+        if (cont == null) {
+            throw new NoSuchElementException("The contact does not exist in the contacts list.");
         }
-
-        throw new NoSuchElementException("The contact does not exist in the contacts list.");
+        return cont;
     }
 
     /**
@@ -113,12 +117,25 @@ public class KBucket {
     }
 
     /**
-     * @return A copy of the list of contacts.
+     * @return True if the bucket has K contacts, new contacts go to the replacement cache.
+     */
+    public synchronized boolean isFull() {
+        return this.contacts.size() >= KademliaConfiguration.K;
+    }
+
+    /**
+     * @return The least recently seen contact, or null if the bucket is empty.
+     */
+    public synchronized Contact getLeastRecentlySeen() {
+        Iterator<Contact> it = this.contacts.values().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    /**
+     * @return A copy of the list of contacts, the least recently seen first.
      */
     public synchronized List<Contact> getContacts() {
-        List<Contact> result = (new ArrayList<>());
-        result.addAll(this.contacts);
-        return result;
+        return new ArrayList<>(this.contacts.values());
     }
 
     /**
@@ -128,18 +145,18 @@ public class KBucket {
      */
     public synchronized boolean containsContact(Contact c)
     {
-        return this.contacts.contains(c);
+        return this.contacts.containsKey(c.getIdentifier());
     }
 
     /**
      * Removes a contact if there is a replacement for it. If not, it increments the stale counter.
      * @param c The contact
-     * @return True if success, false if failed
+     * @return True if the contact was replaced, false if it was not in the bucket or only its stale counter changed.
      */
     public synchronized boolean removeContact(Contact c)
     {
         /* If the contact does not exist, then we failed to remove it */
-        if (!this.contacts.contains(c))
+        if (!this.contacts.containsKey(c.getIdentifier()))
         {
             return false;
         }
@@ -147,16 +164,21 @@ public class KBucket {
         /* Contact exist, lets remove it only if our replacement cache has a replacement */
         if (!this.replacementCache.isEmpty())
         {
-            /* Replace the contact with one from the replacement cache */
-            this.contacts.remove(c);
-            Contact replacement = this.replacementCache.first();
-            this.contacts.add(replacement);
-            this.replacementCache.remove(replacement);
+            /* Replace the contact with the most recently seen one from the replacement cache */
+            this.contacts.remove(c.getIdentifier());
+            Contact replacement = null;
+            for (Contact tmp : this.replacementCache.values())
+            {
+                replacement = tmp; // At most K contacts
+            }
+            this.replacementCache.remove(replacement.getIdentifier());
+            this.contacts.put(replacement.getIdentifier(), replacement);
         }
         else
         {
             /* There is no replacement, just increment the contact's stale count */
             this.getFromContacts(c).incrementStaleCount();
+            return false;
         }
 
         return true;
@@ -168,47 +190,24 @@ public class KBucket {
      */
     private synchronized void insertIntoReplacementCache(Contact c)
     {
-        /* Just return if this contact is already in our replacement cache */
-        if (this.replacementCache.contains(c))
-        {
-            /**
-             * If the contact is already in the bucket, lets update that we've seen it
-             * We need to remove and re-add the contact to get the Sorted Set to update sort order
-             */
-            Contact tmp = this.removeFromReplacementCache(c);
-            tmp.setSeenNow();
-            this.replacementCache.add(tmp);
-        }
-        else if (this.replacementCache.size() > KademliaConfiguration.K)
+        /* If the contact is already in our replacement cache, it moves to the end (most recently seen) */
+        Contact tmp = this.replacementCache.remove(c.getIdentifier());
+        if (tmp != null)
         {
-            /* if our cache is filled, we remove the least recently seen contact */
-            this.replacementCache.remove(this.replacementCache.last());
-            this.replacementCache.add(c);
+            tmp.setLastSeen(Math.max(tmp.getLastSeen(), c.getLastSeen()));
+            this.replacementCache.put(tmp.getIdentifier(), tmp);
         }
         else
         {
-            this.replacementCache.add(c);
-        }
-    }
-
-    /**
-     * Removes a constact from the replacement cache.
-     * @param c The contact.
-     * @return The removed contact.
-     */
-    private synchronized Contact removeFromReplacementCache(Contact c)
-    {
-        for (Contact cont : this.replacementCache)
-        {
-            if (cont.equals(c))
+            /* if our cache is filled, we remove the least recently seen contact */
+            if (this.replacementCache.size() >= KademliaConfiguration.K)
             {
-                this.replacementCache.remove(c);
-                return c;
+                Iterator<Contact> it = this.replacementCache.values().iterator();
+                it.next();
+                it.remove();
             }
+            this.replacementCache.put(c.getIdentifier(), c);
         }
-
-        /* We got here means this element does not exist */
-        throw new NoSuchElementException("Node does not exist in the replacement cache. ");
     }
 
 
@@ -223,7 +222,7 @@ public class KBucket {
         StringBuilder sb = new StringBuilder("Bucket at depth: ");
         sb.append(this.depth);
         sb.append("\n Nodes: \n");
-        for (Contact n : this.contacts)
+        for (Contact n : this.contacts.values())
         {
             sb.append("Node: ");
             sb.append(n.toString());
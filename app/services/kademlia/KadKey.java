@@ -4,20 +4,46 @@ import com.google.common.primitives.Longs;
 import org.bouncycastle.util.encoders.Hex;
 import org.tron.common.crypto.ECKey;
 import org.tron.common.crypto.Hash;
+import org.tron.common.crypto.cryptohash.Keccak256;
 
 import java.math.BigInteger;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.BitSet;
 
 /**
  * 256 bit kad_key
+ * The key is also kept as 4 longs (big endian), so distances and comparisons do not allocate.
  */
 public class KadKey implements Comparable<KadKey> {
-    private byte[] bytes;
+    private final byte[] bytes;
+    private final long w0;
+    private final long w1;
+    private final long w2;
+    private final long w3;
+    private final int hash;
 
     public KadKey(byte[] bytes) {
-        this.bytes = Arrays.copyOf(bytes, 32);
+        this(bytes, true);
+    }
+
+    private KadKey(byte[] bytes, boolean copy) {
+        this.bytes = copy ? Arrays.copyOf(bytes, 32) : bytes;
+        this.w0 = Longs.fromBytes(this.bytes[0], this.bytes[1], this.bytes[2], this.bytes[3], this.bytes[4], this.bytes[5], this.bytes[6], this.bytes[7]);
+        this.w1 = Longs.fromBytes(this.bytes[8], this.bytes[9], this.bytes[10], this.bytes[11], this.bytes[12], this.bytes[13], this.bytes[14], this.bytes[15]);
+        this.w2 = Longs.fromBytes(this.bytes[16], this.bytes[17], this.bytes[18], this.bytes[19], this.bytes[20], this.bytes[21], this.bytes[22], this.bytes[23]);
+        this.w3 = Longs.fromBytes(this.bytes[24], this.bytes[25], this.bytes[26], this.bytes[27], this.bytes[28], this.bytes[29], this.bytes[30], this.bytes[31]);
+        this.hash = Long.hashCode(w0 ^ w1 ^ w2 ^ w3);
+    }
+
+    /**
+     * Creates a kad_key from 32 bytes without copying them.
+     * @param bytes The bytes, not modified after the call.
+     * @return The kad_key.
+     */
+    public static KadKey wrap(byte[] bytes) {
+        return new KadKey(bytes, bytes.length != 32);
     }
 
     /**
@@ -26,13 +52,13 @@ public class KadKey implements Comparable<KadKey> {
      * @return The kad_key.
      */
     public static KadKey fromHex(String hex) {
-        return new KadKey(Hex.decode(hex));
+        return wrap(Hex.decode(hex));
     }
 
     public static KadKey zero() {
         byte[] bytes = new byte[32];
         Arrays.fill(bytes, (byte) 0);
-        return new KadKey(bytes);
+        return wrap(bytes);
     }
 
     /**
@@ -42,7 +68,7 @@ public class KadKey implements Comparable<KadKey> {
     public static KadKey random() {
         byte[] bytes = new byte[32];
         (new SecureRandom()).nextBytes(bytes);
-        return new KadKey(bytes);
+        return wrap(bytes);
     }
 
     /**
@@ -51,11 +77,11 @@ public class KadKey implements Comparable<KadKey> {
      * @return The kad_key.
      */
     public static KadKey fromPublicKey(ECKey key) {
-        return new KadKey(Hash.sha3(key.getPubKey()));
+        return wrap(Hash.sha3(key.getPubKey()));
     }
 
     public static KadKey forNode(String address, int port) {
-        return new KadKey(Hash.sha3((address + ":" + port).getBytes()));
+        return wrap(Hash.sha3((address + ":" + port).getBytes()));
     }
 
     /**
@@ -78,7 +104,14 @@ public class KadKey implements Comparable<KadKey> {
         for (int i = 0; i < 16; i++) {
             bytes[16 + i] = videoKey.getBytes()[i];
         }
-        return new KadKey(bytes);
+        return wrap(bytes);
+    }
+
+    /**
+     * @return A digest for hashing a block content in parts, the same hash used by validateForContent.
+     */
+    public static MessageDigest contentDigest() {
+        return new Keccak256();
     }
 
     /**
@@ -101,7 +134,15 @@ public class KadKey implements Comparable<KadKey> {
      * @return True if is valid.
      */
     public boolean validateForContent(byte[] content) {
-        byte[] contentHash = Hash.sha3(content);
+        return validateForHash(Hash.sha3(content));
+    }
+
+    /**
+     * Validates a kad_key for a content hashed in parts (see contentDigest).
+     * @param contentHash The content hash.
+     * @return True if is valid.
+     */
+    public boolean validateForHash(byte[] contentHash) {
         for (int i = 0; i < 8; i++) {
             if (bytes[i] != contentHash[i]) {
                 return false;
@@ -111,7 +152,7 @@ public class KadKey implements Comparable<KadKey> {
     }
 
     /**
-     * @return The kad_key bytes.
+     * @return The kad_key bytes. They must not be modified.
      */
     public byte[] getBytes() {
         return bytes;
@@ -127,39 +168,21 @@ public class KadKey implements Comparable<KadKey> {
      */
     public int getFirstSetBitIndex()
     {
-        int prefixLength = 0;
+        return leadingZeros(w0, w1, w2, w3);
+    }
 
-        for (byte b : this.bytes)
-        {
-            if (b == 0)
-            {
-                prefixLength += 8;
-            }
-            else
-            {
-                /* If the byte is not 0, we need to count how many MSBs are 0 */
-                int count = 0;
-                for (int i = 7; i >= 0; i--)
-                {
-                    boolean a = (b & (1 << i)) == 0;
-                    if (a)
-                    {
-                        count++;
-                    }
-                    else
-                    {
-                        break;   // Reset the count if we encounter a non-zero number
-                    }
-                }
-
-                /* Add the count of MSB 0s to the prefix length */
-                prefixLength += count;
-
-                /* Break here since we've now covered the MSB 0s */
-                break;
-            }
+    private static int leadingZeros(long x0, long x1, long x2, long x3)
+    {
+        if (x0 != 0) {
+            return Long.numberOfLeadingZeros(x0);
+        }
+        if (x1 != 0) {
+            return 64 + Long.numberOfLeadingZeros(x1);
+        }
+        if (x2 != 0) {
+            return 128 + Long.numberOfLeadingZeros(x2);
         }
-        return prefixLength;
+        return 192 + Long.numberOfLeadingZeros(x3); // 256 if all are 0
     }
 
     /**
@@ -177,7 +200,7 @@ public class KadKey implements Comparable<KadKey> {
             result[i] = (byte) (this.bytes[i] ^ nidBytes[i]);
         }
 
-        return new KadKey(result);
+        return wrap(result);
     }
 
     /**
@@ -186,7 +209,29 @@ public class KadKey implements Comparable<KadKey> {
      * @return The result.
      */
     public int distance(KadKey other) {
-        return 256 - this.xor(other).getFirstSetBitIndex();
+        return 256 - leadingZeros(this.w0 ^ other.w0, this.w1 ^ other.w1, this.w2 ^ other.w2, this.w3 ^ other.w3);
+    }
+
+    /**
+     * Compares the XOR distances of two kad_keys to this kad_key.
+     * @param a A kad_key.
+     * @param b Other kad_key.
+     * @return Negative if a is closer, positive if b is closer, 0 if they are equal.
+     */
+    public int compareDistance(KadKey a, KadKey b) {
+        int c = Long.compareUnsigned(a.w0 ^ this.w0, b.w0 ^ this.w0);
+        if (c != 0) {
+            return c;
+        }
+        c = Long.compareUnsigned(a.w1 ^ this.w1, b.w1 ^ this.w1);
+        if (c != 0) {
+            return c;
+        }
+        c = Long.compareUnsigned(a.w2 ^ this.w2, b.w2 ^ this.w2);
+        if (c != 0) {
+            return c;
+        }
+        return Long.compareUnsigned(a.w3 ^ this.w3, b.w3 ^ this.w3);
     }
 
     /**
@@ -226,7 +271,7 @@ public class KadKey implements Comparable<KadKey> {
             result[i] = Byte.MAX_VALUE;
         }
 
-        return this.xor(new KadKey(result));
+        return this.xor(wrap(result));
     }
 
     @Override
@@ -238,14 +283,32 @@ public class KadKey implements Comparable<KadKey> {
     @Override
     public boolean equals(Object o) {
         if (o instanceof KadKey) {
-            return Arrays.equals(this.bytes, ((KadKey)o).bytes);
+            KadKey k = (KadKey) o;
+            return this.hash == k.hash && this.w0 == k.w0 && this.w1 == k.w1 && this.w2 == k.w2 && this.w3 == k.w3;
         } else {
             return false;
         }
     }
 
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
     @Override
     public int compareTo(KadKey o) {
-        return this.getBigInteger().compareTo(o.getBigInteger());
+        int c = Long.compareUnsigned(this.w0, o.w0);
+        if (c != 0) {
+            return c;
+        }
+        c = Long.compareUnsigned(this.w1, o.w1);
+        if (c != 0) {
+            return c;
+        }
+        c = Long.compareUnsigned(this.w2, o.w2);
+        if (c != 0) {
+            return c;
+        }
+        return Long.compareUnsigned(this.w3, o.w3);
     }
 }
@@ -1,13 +1,16 @@
 package services.kademlia;
 
 import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 
 /**
  * Kademlia TCP message (for sending blocks)
@@ -16,14 +19,28 @@ public class KadTCPMessage {
 
     private static final String CIPHER_ALGORITHM = "AES/CTR/NoPadding";
 
-    private static final int MAX_MSG_SIZE = 20 * 1024 * 1024;
+    public static final int MAX_MSG_SIZE = 20 * 1024 * 1024;
 
     private static final int MSG_TCP_READ = 0x05;
     private static final int MSG_TCP_STORE = 0x06;
     private static final int MSG_TCP_ERROR = 0x08;
+    private static final int MSG_TCP_ACK = 0x09;
+    private static final int MSG_TCP_HELLO = 0x0A;
+
+    /**
+     * Direction of the frames in a multiplexed connection, for deriving their IVs.
+     */
+    public static final int DIRECTION_CLIENT = 0;
+    public static final int DIRECTION_SERVER = 1;
+
+    private static final ThreadLocal<Cipher> threadCiphers = new ThreadLocal<>();
+    private static volatile SecretKey networkKey = null;
+    private static volatile byte[] networkKeySource = null;
 
     private int type;
 
+    private int requestId;
+
     private KadKey requestKey;
     private byte[] content;
 
@@ -69,6 +86,27 @@ public class KadTCPMessage {
         return msg;
     }
 
+    /**
+     * Creates an ACK message (confirms a STORE in multiplexed connections).
+     * @return The message.
+     */
+    public static KadTCPMessage createAckMessage() {
+        KadTCPMessage msg = new KadTCPMessage();
+        msg.setType(MSG_TCP_ACK);
+        return msg;
+    }
+
+    /**
+     * Creates a HELLO message. Sent as first message to switch the connection to multiplexed mode.
+     * Peers that do not support it close the connection.
+     * @return The message.
+     */
+    public static KadTCPMessage createHelloMessage() {
+        KadTCPMessage msg = new KadTCPMessage();
+        msg.setType(MSG_TCP_HELLO);
+        return msg;
+    }
+
     /**
      * @return True if the message is a STORE message.
      */
@@ -90,6 +128,40 @@ public class KadTCPMessage {
         return this.type == MSG_TCP_ERROR;
     }
 
+    /**
+     * @return True if the message is a ACK message.
+     */
+    public boolean isAck() {
+        return this.type == MSG_TCP_ACK;
+    }
+
+    /**
+     * @return True if the message is a HELLO message.
+     */
+    public boolean isHello() {
+        return this.type == MSG_TCP_HELLO;
+    }
+
+    /**
+     * Gets the size of the fields that follow the type of a message, not counting the block content.
+     * @param type The message type.
+     * @return The size, or -1 if the type is unknown.
+     */
+    static int getFieldsSize(int type) {
+        switch (type) {
+            case MSG_TCP_READ:
+                return 32;
+            case MSG_TCP_STORE:
+                return 32 + 4;
+            case MSG_TCP_ERROR:
+            case MSG_TCP_ACK:
+            case MSG_TCP_HELLO:
+                return 0;
+            default:
+                return -1;
+        }
+    }
+
     /**
      * Reads the message from a stream.
      * @param stream The input stream.
@@ -102,14 +174,14 @@ public class KadTCPMessage {
             {
                 byte[] keyBytes = new byte[32];
                 stream.readFully(keyBytes);
-                this.requestKey = new KadKey(keyBytes);
+                this.requestKey = KadKey.wrap(keyBytes);
             }
                 break;
             case MSG_TCP_STORE:
             {
                 byte[] keyBytes = new byte[32];
                 stream.readFully(keyBytes);
-                this.requestKey = new KadKey(keyBytes);
+                this.requestKey = KadKey.wrap(keyBytes);
                 int blockSize = stream.readInt();
                 if (blockSize < 0 || blockSize > KademliaConfiguration.MAX_BLOCK_SIZE) {
                     throw new IOException("Invalid block size.");
@@ -122,6 +194,8 @@ public class KadTCPMessage {
             }
                 break;
             case MSG_TCP_ERROR:
+            case MSG_TCP_ACK:
+            case MSG_TCP_HELLO:
                 break;
             default:
                 throw new IOException("Unknown message type.");
@@ -130,6 +204,7 @@ public class KadTCPMessage {
 
     /**
      * Reads a message from an encrypted stream.
+     * The message is decrypted while it is read, the block content is the only buffer allocated.
      * @param stream The input stream.
      * @param ivParameterSpec The IV for the connection.
      * @throws IOException
@@ -145,27 +220,51 @@ public class KadTCPMessage {
             throw new IOException("The message received was too big");
         }
 
-        byte[] data = new byte[size];
+        DecryptingInputStream din = new DecryptingInputStream(stream, size, ivParameterSpec);
+        this.readFromStream(new DataInputStream(din));
+        din.skipRemaining();
+    }
 
-        // Read data
-        stream.readFully(data);
+    /**
+     * Reads a frame of a multiplexed connection (request id + message).
+     * @param stream The input stream.
+     * @param frameIv The frame IV (see deriveFrameIv)
+     * @throws IOException
+     */
+    public void readFromEncryptedFrame(DataInputStream stream, IvParameterSpec frameIv) throws IOException {
+        int size = stream.readInt();
 
-        // Decrypt data
-        SecretKey originalKey = new SecretKeySpec(KademliaConfiguration.NETWORK_PROOF_KEY, 0, KademliaConfiguration.NETWORK_PROOF_KEY.length > 32 ? 32 : KademliaConfiguration.NETWORK_PROOF_KEY.length, "AES");
-        Cipher cipher;
-        try {
-            cipher = Cipher.getInstance(CIPHER_ALGORITHM);
-            cipher.init(Cipher.DECRYPT_MODE, originalKey, ivParameterSpec);
-            data = cipher.doFinal(data);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return;
+        if (size < 8) {
+            throw new IOException("Invalid protocol.");
         }
 
-        ByteArrayInputStream bin = new ByteArrayInputStream(data, 0, data.length);
-        DataInputStream din = new DataInputStream(bin);
+        if (size > MAX_MSG_SIZE) {
+            throw new IOException("The message received was too big");
+        }
+
+        DecryptingInputStream din = new DecryptingInputStream(stream, size, frameIv);
+        DataInputStream data = new DataInputStream(din);
+        this.requestId = data.readInt();
+        this.readFromStream(data);
+        din.skipRemaining();
+    }
 
-        this.readFromStream(din);
+    /**
+     * Derives the IV of a frame in a multiplexed connection.
+     * Every frame gets a different IV, so the CTR key stream is never reused within the connection.
+     * @param connectionIv The IV sent by the server when the connection was opened.
+     * @param direction DIRECTION_CLIENT or DIRECTION_SERVER
+     * @param sequence The frame number in that direction.
+     * @return The frame IV.
+     */
+    public static IvParameterSpec deriveFrameIv(IvParameterSpec connectionIv, int direction, long sequence) {
+        byte[] iv = connectionIv.getIV();
+        long mask = ((long) direction << 63) | (sequence & Long.MAX_VALUE);
+        // The high half is modified, the low half is the CTR counter
+        for (int i = 0; i < 8; i++) {
+            iv[i] ^= (byte) (mask >>> (56 - 8 * i));
+        }
+        return new IvParameterSpec(iv);
     }
 
     /**
@@ -205,22 +304,44 @@ public class KadTCPMessage {
         return buf.array();
     }
 
+    /**
+     * Serializes the header of a STORE message (everything but the content),
+     * for sending the content in parts.
+     * @param key The block kad_key.
+     * @param contentLength The block size.
+     * @return The serialized header.
+     */
+    public static byte[] serializeStoreHeader(KadKey key, int contentLength) {
+        ByteBuffer buf = ByteBuffer.allocate(4 + 32 + 4);
+        buf.putInt(MSG_TCP_STORE);
+        buf.put(key.getBytes());
+        buf.putInt(contentLength);
+        return buf.array();
+    }
+
     /**
      * @return the serialized and encrypted message.
      */
     public byte[] serializeAndEncrypt(IvParameterSpec ivParameterSpec) {
-        byte[] data = this.serialize();
+        return encryptWithLength(this.serialize(), ivParameterSpec);
+    }
 
+    /**
+     * Serializes and encrypts the message as a frame of a multiplexed connection.
+     * @param frameIv The frame IV (see deriveFrameIv)
+     * @return The frame.
+     */
+    public byte[] serializeAndEncryptFrame(IvParameterSpec frameIv) {
+        byte[] msg = this.serialize();
+        ByteBuffer buf = ByteBuffer.allocate(4 + msg.length);
+        buf.putInt(this.requestId);
+        buf.put(msg);
+        return encryptWithLength(buf.array(), frameIv);
+    }
 
-        // Decrypt data
-        SecretKey originalKey = new SecretKeySpec(KademliaConfiguration.NETWORK_PROOF_KEY, 0, KademliaConfiguration.NETWORK_PROOF_KEY.length > 32 ? 32 : KademliaConfiguration.NETWORK_PROOF_KEY.length, "AES");
-        Cipher cipher;
-        try {
-            cipher = Cipher.getInstance(CIPHER_ALGORITHM);
-            cipher.init(Cipher.ENCRYPT_MODE, originalKey, ivParameterSpec);
-            data = cipher.doFinal(data);
-        } catch (Exception e) {
-            e.printStackTrace();
+    private static byte[] encryptWithLength(byte[] data, IvParameterSpec ivParameterSpec) {
+        data = crypt(Cipher.ENCRYPT_MODE, ivParameterSpec, data);
+        if (data == null) {
             return null;
         }
 
@@ -231,6 +352,135 @@ public class KadTCPMessage {
         return buf.array();
     }
 
+    /**
+     * Creates a cipher with the network key, for encrypting or decrypting in parts.
+     * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param ivParameterSpec The IV.
+     * @return The cipher.
+     * @throws GeneralSecurityException
+     */
+    public static Cipher createCipher(int mode, IvParameterSpec ivParameterSpec) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+        initCipher(cipher, mode, ivParameterSpec);
+        return cipher;
+    }
+
+    /**
+     * Initializes again a cipher created by createCipher, for a new message.
+     * @param cipher The cipher.
+     * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param ivParameterSpec The IV.
+     * @throws GeneralSecurityException
+     */
+    public static void initCipher(Cipher cipher, int mode, IvParameterSpec ivParameterSpec) throws GeneralSecurityException {
+        cipher.init(mode, networkKey(), ivParameterSpec);
+    }
+
+    /**
+     * Gets the cipher of the current thread, initialized with the network key.
+     * Must not be kept after the message is processed.
+     * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param ivParameterSpec The IV.
+     * @return The cipher.
+     * @throws GeneralSecurityException
+     */
+    public static Cipher threadCipher(int mode, IvParameterSpec ivParameterSpec) throws GeneralSecurityException {
+        Cipher cipher = threadCiphers.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            threadCiphers.set(cipher);
+        }
+        initCipher(cipher, mode, ivParameterSpec);
+        return cipher;
+    }
+
+    /**
+     * @return The AES key, derived from the network proof key.
+     */
+    private static SecretKey networkKey() {
+        SecretKey key = networkKey;
+        byte[] proofKey = KademliaConfiguration.NETWORK_PROOF_KEY;
+        if (key == null || networkKeySource != proofKey) {
+            key = new SecretKeySpec(proofKey, 0, proofKey.length > 32 ? 32 : proofKey.length, "AES");
+            networkKey = key;
+            networkKeySource = proofKey;
+        }
+        return key;
+    }
+
+    /**
+     * Encrypts or decrypts data with the network key.
+     * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param ivParameterSpec The IV.
+     * @param data The data.
+     * @return The result, or null on error.
+     */
+    private static byte[] crypt(int mode, IvParameterSpec ivParameterSpec, byte[] data) {
+        try {
+            return threadCipher(mode, ivParameterSpec).doFinal(data);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Decrypts a message while it is read. The data is decrypted in place, in the reader buffer.
+     */
+    private static class DecryptingInputStream extends InputStream {
+        private final InputStream in;
+        private final Cipher cipher;
+        private int remaining;
+
+        private DecryptingInputStream(InputStream in, int size, IvParameterSpec ivParameterSpec) throws IOException {
+            this.in = in;
+            this.remaining = size;
+            try {
+                this.cipher = threadCipher(Cipher.DECRYPT_MODE, ivParameterSpec);
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, Math.min(len, remaining));
+            if (n < 0) {
+                throw new EOFException();
+            }
+            remaining -= n;
+            try {
+                cipher.update(b, off, n, b, off);
+            } catch (ShortBufferException e) {
+                throw new IOException(e.getMessage());
+            }
+            return n;
+        }
+
+        /**
+         * Skips the rest of the message (unknown fields).
+         */
+        private void skipRemaining() throws IOException {
+            while (remaining > 0) {
+                long n = in.skip(remaining);
+                if (n <= 0) {
+                    throw new EOFException();
+                }
+                remaining -= n;
+            }
+        }
+    }
+
     public int getType() {
         return type;
     }
@@ -239,6 +489,14 @@ public class KadTCPMessage {
         this.type = type;
     }
 
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(int requestId) {
+        this.requestId = requestId;
+    }
+
     public KadKey getRequestKey() {
         return requestKey;
     }
@@ -0,0 +1,298 @@
+package services.kademlia;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+/**
+ * Decodes the messages received by a server connection as the data arrives.
+ * The data is decrypted in place with a cipher kept for the connection, and the content
+ * of STORE messages is written to a temporal file and hashed while it is received,
+ * so a block transfer never needs the whole block in memory.
+ */
+class KadTCPStreamDecoder implements Closeable {
+
+    /**
+     * Receives the decoded messages.
+     */
+    interface Listener {
+        /**
+         * Called when the header of a STORE message is decoded, before its content.
+         * @param msg The message, without content.
+         * @return True to receive the content, false to discard it.
+         */
+        boolean acceptContent(KadTCPMessage msg);
+
+        /**
+         * Called when a message is completely received.
+         * @param msg The message. The content of STORE messages is not set.
+         * @param index The frame number in the connection.
+         * @param content The validated file with the content of a STORE message, or null if discarded.
+         *                It is deleted after the call, unless it is moved.
+         * @throws IOException
+         */
+        void onMessage(KadTCPMessage msg, long index, Path content) throws IOException;
+    }
+
+    private static final int MAX_HEADER_SIZE = 4 + 4 + 32 + 4;
+
+    private final IvParameterSpec connectionIv;
+    private final Path incomingPath;
+    private final Listener listener;
+    private final Cipher cipher;
+
+    private boolean multiplexed;
+    private boolean finished;
+    private boolean closed;
+
+    // Current frame
+    private final ByteBuffer length;
+    private final ByteBuffer header;
+    private long index;
+    private int frameRemaining;
+    private int headerSize;
+    private boolean typeRead;
+    private KadTCPMessage msg;
+
+    // Content of a STORE message
+    private int contentRemaining;
+    private Path contentPath;
+    private FileChannel contentFile;
+    private MessageDigest digest;
+
+    /**
+     * @param connectionIv The IV of the connection.
+     * @param incomingPath Directory for the temporal files, in the same filesystem of the blocks.
+     * @param listener Receives the messages.
+     * @throws IOException
+     */
+    KadTCPStreamDecoder(IvParameterSpec connectionIv, Path incomingPath, Listener listener) throws IOException {
+        this.connectionIv = connectionIv;
+        this.incomingPath = incomingPath;
+        this.listener = listener;
+        try {
+            this.cipher = KadTCPMessage.createCipher(Cipher.DECRYPT_MODE, connectionIv);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex.getMessage());
+        }
+        this.multiplexed = false;
+        this.finished = false;
+        this.closed = false;
+        this.length = ByteBuffer.allocate(4);
+        this.header = ByteBuffer.allocate(MAX_HEADER_SIZE);
+        this.index = 0;
+        this.frameRemaining = -1;
+    }
+
+    /**
+     * Decodes received data. The data is decrypted in place.
+     * @param data The buffer.
+     * @param offset The data offset.
+     * @param count The data length.
+     * @throws IOException If the data is invalid, or the listener failed.
+     */
+    public synchronized void feed(byte[] data, int offset, int count) throws IOException {
+        int end = offset + count;
+        while (offset < end && !finished && !closed) {
+            if (frameRemaining < 0) {
+                // Frame length
+                int n = Math.min(end - offset, length.remaining());
+                length.put(data, offset, n);
+                offset += n;
+                if (!length.hasRemaining()) {
+                    length.flip();
+                    startFrame(length.getInt());
+                    length.clear();
+                }
+            } else {
+                int n = Math.min(end - offset, frameRemaining);
+                try {
+                    cipher.update(data, offset, n, data, offset);
+                } catch (GeneralSecurityException ex) {
+                    throw new IOException(ex.getMessage());
+                }
+                frameRemaining -= n;
+                decode(data, offset, n);
+                offset += n;
+            }
+
+            if (frameRemaining == 0) {
+                endFrame();
+            }
+        }
+    }
+
+    private void startFrame(int size) throws IOException {
+        if (size < 4) {
+            throw new IOException("Invalid protocol.");
+        }
+        if (size > KadTCPMessage.MAX_MSG_SIZE) {
+            throw new IOException("The message received was too big");
+        }
+
+        IvParameterSpec iv;
+        if (index == 0) {
+            iv = connectionIv; // HELLO, or the only message of older peers
+        } else if (multiplexed) {
+            iv = KadTCPMessage.deriveFrameIv(connectionIv, KadTCPMessage.DIRECTION_CLIENT, index);
+        } else {
+            throw new IOException("Unexpected message.");
+        }
+        try {
+            KadTCPMessage.initCipher(cipher, Cipher.DECRYPT_MODE, iv);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex.getMessage());
+        }
+
+        this.frameRemaining = size;
+        this.header.clear();
+        this.headerSize = (multiplexed && index > 0) ? 4 + 4 : 4;
+        this.typeRead = false;
+        this.msg = null;
+        this.contentRemaining = 0;
+    }
+
+    /**
+     * Decodes decrypted data of the current frame.
+     */
+    private void decode(byte[] data, int offset, int count) throws IOException {
+        int end = offset + count;
+        while (offset < end) {
+            if (msg == null) {
+                int n = Math.min(end - offset, headerSize - header.position());
+                header.put(data, offset, n);
+                offset += n;
+                if (header.position() == headerSize) {
+                    parseHeader();
+                }
+            } else if (contentRemaining > 0) {
+                int n = Math.min(end - offset, contentRemaining);
+                if (contentFile != null) {
+                    ByteBuffer buf = ByteBuffer.wrap(data, offset, n);
+                    while (buf.hasRemaining()) {
+                        contentFile.write(buf);
+                    }
+                    digest.update(data, offset, n);
+                }
+                contentRemaining -= n;
+                offset += n;
+            } else {
+                return; // Unknown fields, ignored
+            }
+        }
+    }
+
+    private void parseHeader() throws IOException {
+        if (!typeRead) {
+            int type = header.getInt(headerSize - 4);
+            int fieldsSize = KadTCPMessage.getFieldsSize(type);
+            if (fieldsSize < 0) {
+                throw new IOException("Unknown message type.");
+            }
+            typeRead = true;
+            if (fieldsSize > 0) {
+                headerSize += fieldsSize;
+                return;
+            }
+        }
+
+        header.flip();
+        KadTCPMessage parsed = new KadTCPMessage();
+        if (multiplexed && index > 0) {
+            parsed.setRequestId(header.getInt());
+        }
+        parsed.setType(header.getInt());
+        if (header.hasRemaining()) {
+            byte[] keyBytes = new byte[32];
+            header.get(keyBytes);
+            parsed.setRequestKey(KadKey.wrap(keyBytes));
+        }
+        if (parsed.isStore()) {
+            int blockSize = header.getInt();
+            if (blockSize < 0 || blockSize > KademliaConfiguration.MAX_BLOCK_SIZE) {
+                throw new IOException("Invalid block size.");
+            }
+            this.contentRemaining = blockSize;
+            if (listener.acceptContent(parsed)) {
+                this.contentPath = Files.createTempFile(incomingPath, parsed.getRequestKey().toString(), ".tmp");
+                this.contentFile = FileChannel.open(contentPath, StandardOpenOption.WRITE);
+                this.digest = KadKey.contentDigest();
+            }
+        }
+        this.msg = parsed;
+    }
+
+    private void endFrame() throws IOException {
+        KadTCPMessage received = msg;
+        if (received == null) {
+            throw new IOException("Invalid protocol.");
+        }
+        if (contentRemaining > 0) {
+            throw new IOException("Invalid block size.");
+        }
+        long frameIndex = index;
+        this.msg = null;
+        this.frameRemaining = -1;
+        this.index++;
+
+        if (frameIndex == 0) {
+            if (received.isHello()) {
+                this.multiplexed = true;
+            } else {
+                this.finished = true; // Older peers send a single message per connection
+            }
+        }
+
+        Path content = null;
+        if (contentFile != null) {
+            contentFile.close();
+            contentFile = null;
+            if (!received.getRequestKey().validateForHash(digest.digest())) {
+                throw new IOException("The kad_key received is invalid for the content received.");
+            }
+            content = contentPath;
+        }
+
+        try {
+            listener.onMessage(received, frameIndex, content);
+        } finally {
+            deleteContent();
+        }
+    }
+
+    private void deleteContent() {
+        if (contentFile != null) {
+            try {
+                contentFile.close();
+            } catch (IOException e) {
+            }
+            contentFile = null;
+        }
+        if (contentPath != null) {
+            try {
+                Files.deleteIfExists(contentPath);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            contentPath = null;
+        }
+        digest = null;
+    }
+
+    /**
+     * Stops decoding, deleting the content being received.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        deleteContent();
+    }
+}
@@ -4,9 +4,7 @@ import org.bouncycastle.util.encoders.Hex;
 import org.tron.common.crypto.Hash;
 
 import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
@@ -23,7 +21,7 @@ import java.util.List;
  * Represents a peer-to-peer message, with security.
  */
 public class KadUDPMessage {
-    private static final String CIPHER_ALGORITHM = "AES/CTR/NoPadding";
+    private static final SecureRandom random = new SecureRandom();
     private static final int DATAGRAM_BUFFER_SIZE = 64 * 1024;      // 64KB
 
     private static final int NO_MSG = 0x00;
@@ -31,6 +29,12 @@ public class KadUDPMessage {
     private static final int NODE_LOOKUP_CODE = 0x02;
     private static final int NODE_REPLY_CODE = 0x03;
     private static final int CONTENT_ANNOUNCE = 0x04;
+    private static final int CONTENT_ANNOUNCE_BATCH = 0x05;
+
+    /**
+     * Max keys in an ANNOUNCE_BATCH message (8KB of keys)
+     */
+    public static final int MAX_ANNOUNCE_BATCH = 256;
 
     private int msgType; // Message type
     private int commId; // Communication identifier (positive for requests, negative for responses)
@@ -41,6 +45,7 @@ public class KadUDPMessage {
 
     private KadKey lookup;
     private List<Node> nodes;
+    private List<KadKey> keys;
 
     /**
      * Creates a HELLO message.
@@ -80,6 +85,20 @@ public class KadUDPMessage {
         return message;
     }
 
+    /**
+     * Creates message for announcing many contents to the same peer.
+     * @param origin Origin, for getting a reply
+     * @param commId The communication identifier
+     * @param keys The kad_keys to announce (up to MAX_ANNOUNCE_BATCH)
+     * @return The message
+     */
+    public static KadUDPMessage createAnnounceBatchMessage(Node origin, int commId, List<KadKey> keys) {
+        KadUDPMessage message = new KadUDPMessage(origin, CONTENT_ANNOUNCE_BATCH, commId, null, null);
+        message.setKeys(keys);
+        message.makeProof();
+        return message;
+    }
+
     /**
      * Creates a lookup reply message.
      * @param origin Origin, for getting a reply
@@ -99,6 +118,7 @@ public class KadUDPMessage {
         this.commId = commId;
         this.lookup = lookup;
         this.nodes = nodes;
+        this.keys = null;
         this.iv = null;
         this.proof = null;
         this.timestamp = System.currentTimeMillis();
@@ -110,6 +130,7 @@ public class KadUDPMessage {
         this.commId = 0;
         this.lookup = null;
         this.nodes = null;
+        this.keys = null;
         this.iv = null;
         this.proof = null;
         this.timestamp = 0;
@@ -124,7 +145,7 @@ public class KadUDPMessage {
     public void readFromStream(DataInputStream stream) throws IOException {
         this.msgType = stream.readInt();
 
-        if (msgType < 0x00 || msgType > 0x04) {
+        if (msgType < 0x00 || msgType > CONTENT_ANNOUNCE_BATCH) {
             throw new IOException("Invalid message type received.");
         }
 
@@ -157,7 +178,7 @@ public class KadUDPMessage {
             case CONTENT_ANNOUNCE: {
                 byte[] keyLookup = new byte[32];
                 stream.readFully(keyLookup);
-                this.lookup = new KadKey(keyLookup);
+                this.lookup = KadKey.wrap(keyLookup);
             }
             break;
             case NODE_REPLY_CODE: {
@@ -178,6 +199,19 @@ public class KadUDPMessage {
                     this.nodes.add(new Node(addr, port));
                 }
             }
+            break;
+            case CONTENT_ANNOUNCE_BATCH: {
+                int keysCount = stream.readInt();
+                if (keysCount < 0 || keysCount > MAX_ANNOUNCE_BATCH) {
+                    throw new IOException("Invalid keys list size. Must be between 0 and " + MAX_ANNOUNCE_BATCH + ".");
+                }
+                this.keys = new ArrayList<>(keysCount);
+                for (int i = 0; i < keysCount; i++) {
+                    byte[] key = new byte[32];
+                    stream.readFully(key);
+                    this.keys.add(KadKey.wrap(key));
+                }
+            }
         }
     }
 
@@ -201,6 +235,10 @@ public class KadUDPMessage {
                     msgSize += 4; // Port
                 }
             }
+            break;
+            case CONTENT_ANNOUNCE_BATCH: {
+                msgSize += 4 + 32 * this.keys.size();
+            }
         }
         ByteBuffer buf = ByteBuffer.allocate(msgSize);
         buf.putInt(msgType);
@@ -229,6 +267,13 @@ public class KadUDPMessage {
                     buf.putInt(n.getPort());
                 }
             }
+            break;
+            case CONTENT_ANNOUNCE_BATCH: {
+                buf.putInt(this.keys.size());
+                for (KadKey key : this.keys) {
+                    buf.put(key.getBytes());
+                }
+            }
         }
 
         return buf.array();
@@ -254,6 +299,10 @@ public class KadUDPMessage {
                     msgSize += 4; // Port
                 }
             }
+            break;
+            case CONTENT_ANNOUNCE_BATCH: {
+                msgSize += 4 + 32 * this.keys.size();
+            }
         }
         ByteBuffer buf = ByteBuffer.allocate(msgSize);
         buf.putInt(msgType);
@@ -281,6 +330,13 @@ public class KadUDPMessage {
                     buf.putInt(n.getPort());
                 }
             }
+            break;
+            case CONTENT_ANNOUNCE_BATCH: {
+                buf.putInt(this.keys.size());
+                for (KadKey key : this.keys) {
+                    buf.put(key.getBytes());
+                }
+            }
         }
 
         return Hash.sha3(buf.array());
@@ -290,16 +346,13 @@ public class KadUDPMessage {
      * Creates a proof for this message to be accepted by other peers.
      */
     public void makeProof() {
-        SecretKey originalKey = new SecretKeySpec(KademliaConfiguration.NETWORK_PROOF_KEY, 0, KademliaConfiguration.NETWORK_PROOF_KEY.length > 32 ? 32 : KademliaConfiguration.NETWORK_PROOF_KEY.length, "AES");
-
         this.iv = new byte[16];
-        (new SecureRandom()).nextBytes(this.iv);
+        random.nextBytes(this.iv);
         IvParameterSpec ivParameterSpec = new IvParameterSpec(this.iv);
 
         Cipher cipher;
         try {
-            cipher = Cipher.getInstance(CIPHER_ALGORITHM);
-            cipher.init(Cipher.ENCRYPT_MODE, originalKey, ivParameterSpec);
+            cipher = KadTCPMessage.threadCipher(Cipher.ENCRYPT_MODE, ivParameterSpec);
             this.proof = cipher.doFinal(this.computeHash());
         } catch (Exception e) {
             e.printStackTrace();
@@ -312,15 +365,13 @@ public class KadUDPMessage {
      * @return True if the message is valid, false if it is invalid.
      */
     public boolean isValid() {
-        SecretKey originalKey = new SecretKeySpec(KademliaConfiguration.NETWORK_PROOF_KEY, 0, KademliaConfiguration.NETWORK_PROOF_KEY.length > 32 ? 32 : KademliaConfiguration.NETWORK_PROOF_KEY.length, "AES");
         IvParameterSpec ivParameterSpec = new IvParameterSpec(this.iv);
 
         byte[] hash = this.computeHash();
 
         Cipher cipher;
         try {
-            cipher = Cipher.getInstance(CIPHER_ALGORITHM);
-            cipher.init(Cipher.DECRYPT_MODE, originalKey, ivParameterSpec);
+            cipher = KadTCPMessage.threadCipher(Cipher.DECRYPT_MODE, ivParameterSpec);
             byte[] resolvedProof = cipher.doFinal(this.proof);
             return Arrays.equals(hash, resolvedProof);
         } catch (Exception e) {
@@ -370,6 +421,13 @@ public class KadUDPMessage {
         return msgType == CONTENT_ANNOUNCE;
     }
 
+    /**
+     * @return True if it is an ANNOUNCE_BATCH message.
+     */
+    public boolean isAnnounceBatch() {
+        return msgType == CONTENT_ANNOUNCE_BATCH;
+    }
+
     /**
      * @return True if it is a LOOKUP_REPLY message.
      */
@@ -441,6 +499,14 @@ public class KadUDPMessage {
         this.nodes = nodes;
     }
 
+    public List<KadKey> getKeys() {
+        return keys;
+    }
+
+    public void setKeys(List<KadKey> keys) {
+        this.keys = keys;
+    }
+
     @Override
     public String toString() {
         String str = "\n";
@@ -461,6 +527,9 @@ public class KadUDPMessage {
             case CONTENT_ANNOUNCE:
                 str += "Type: CONTENT_ANNOUNCE";
                 break;
+            case CONTENT_ANNOUNCE_BATCH:
+                str += "Type: CONTENT_ANNOUNCE_BATCH";
+                break;
             default:
                 str += "Type: UNKNOWN";
         }
@@ -493,6 +562,11 @@ public class KadUDPMessage {
                     str += "\n";
                 }
             }
+            break;
+            case CONTENT_ANNOUNCE_BATCH: {
+                str += "Keys: (" + this.keys.size() + ")";
+                str += "\n";
+            }
         }
 
         return str;
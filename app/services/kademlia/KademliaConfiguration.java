@@ -9,12 +9,23 @@ public class KademliaConfiguration {
     public static long RESPONSE_TIMEOUT = 2000;
     public static long OPERATION_TIMEOUT = 2000;
     public static int CONCURRENCY = 10;
+    public static int UDP_READERS = Math.min(4, Runtime.getRuntime().availableProcessors());
+    public static int DISPATCH_THREADS = 8;
+    public static int DISPATCH_QUEUE = 1024;
+    public static long TIMEOUT_TICK = 50;
     public static int K = 5;
     public static int RCSIZE = 3;
     public static int STALE = 1;
 
     public static long MAX_BLOCK_SIZE = 5 * 1024 * 1024;
 
+    public static int TCP_POOL_SIZE = 4;
+    public static long TCP_IDLE_TIMEOUT = 30 * 1000;
+    public static long TCP_REQUEST_TIMEOUT = 30 * 1000;
+
+    public static int TCP_SERVER_WORKERS = 16;
+    public static int TCP_SERVER_CONNECTIONS = 1024;
+
     public static byte[] NETWORK_PROOF_KEY = {
             0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
             0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
@@ -22,4 +33,20 @@ public class KademliaConfiguration {
             0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
 
     public static int REPLICATION = 2;
+
+    public static int ANNOUNCE_BATCH = KadUDPMessage.MAX_ANNOUNCE_BATCH;
+
+    public static int STORE_IN_FLIGHT = 8;
+    public static int STORE_THREADS = 16;
+    public static int STORE_RETRIES = 0;
+    public static long STORE_BACKOFF_MIN = 500;
+    public static long STORE_BACKOFF_MAX = 30 * 1000;
+
+    public static int READ_THREADS = 32;
+    public static double HEDGE_PERCENTILE = 0.95;
+    public static long HEDGE_DELAY = 500;
+    public static long HEDGE_MIN_DELAY = 20;
+
+    public static int REPUBLISH_PARALLELISM = 10;
+    public static double REPUBLISH_RATE = 0;
 }
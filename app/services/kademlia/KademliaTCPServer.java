@@ -0,0 +1,786 @@
+package services.kademlia;
+
+import services.DHTService;
+import utils.StoragePaths;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TCP server for block transfers (READ / STORE).
+ * A single selector thread does the network I/O, requests are decrypted and served
+ * (disk I/O) by a bounded pool of workers.
+ * Blocks are sent in chunks, read from the file and encrypted into a reused buffer, and received
+ * blocks are decrypted as they arrive into a temporal file, so the memory per transfer does not
+ * depend on the block size.
+ * Backpressure: a connection is not read while too much input is waiting to be decoded or too much output is pending.
+ * Admission control: connections over the limit are refused, and requests that do not fit
+ * in the workers queue are answered with ERROR.
+ */
+public class KademliaTCPServer {
+
+    private static final int MAX_PENDING_REQUESTS = 8;
+    private static final long MAX_PENDING_INPUT = 1024 * 1024;
+    private static final long MAX_PENDING_OUTPUT = 8 * 1024 * 1024;
+    private static final long SELECT_TIMEOUT = 1000;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> chunkReadBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(CHUNK_SIZE));
+
+    private final DHTService dht;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ThreadPoolExecutor workers;
+    private final Queue<Connection> updates;
+    private final SecureRandom random;
+    private final ByteBuffer readBuffer;
+    private final Path incomingPath;
+
+    private final int maxQueuedRequests;
+    private final int maxConnections;
+    private int connectionCount;
+
+    private final AtomicLong refusedConnections;
+    private final AtomicLong rejectedRequests;
+
+    private Thread loopThread;
+    private volatile boolean ended;
+
+    /**
+     * Creates the server and binds it.
+     * @param dht The DHT service.
+     * @param bindAddress The address to listen.
+     * @param workerThreads Number of threads serving requests.
+     * @param maxConnections Max number of open connections.
+     * @throws IOException
+     */
+    public KademliaTCPServer(DHTService dht, InetSocketAddress bindAddress, int workerThreads, int maxConnections) throws IOException {
+        this.dht = dht;
+        this.maxConnections = maxConnections;
+        this.connectionCount = 0;
+        this.updates = new ConcurrentLinkedQueue<>();
+        this.random = new SecureRandom();
+        this.refusedConnections = new AtomicLong(0);
+        this.rejectedRequests = new AtomicLong(0);
+        this.ended = false;
+        this.readBuffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        this.incomingPath = StoragePaths.getIncomingChunksPath();
+        deleteIncomplete(incomingPath);
+
+        // Room for a decoding and a reading task per connection, requests over maxQueuedRequests are rejected
+        this.maxQueuedRequests = workerThreads * MAX_PENDING_REQUESTS;
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(2 * maxConnections + maxQueuedRequests));
+        this.workers.allowCoreThreadTimeOut(true);
+
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(bindAddress);
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Deletes the blocks left incomplete by a previous run.
+     */
+    private static void deleteIncomplete(Path incomingPath) {
+        File[] files = incomingPath.toFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.delete()) {
+                System.out.println("[WARNING] Could not delete " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Starts the selector thread.
+     */
+    public void start() {
+        this.loopThread = new Thread(this::loop, "kad-tcp-server");
+        this.loopThread.start();
+    }
+
+    /**
+     * Stops the server.
+     */
+    public void close() {
+        ended = true;
+        workers.shutdownNow();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void loop() {
+        long lastIdleCheck = System.currentTimeMillis();
+
+        while (!ended) {
+            try {
+                selector.select(SELECT_TIMEOUT);
+
+                // Changes requested by the workers
+                Connection updated;
+                while ((updated = updates.poll()) != null) {
+                    updateInterest(updated);
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    Connection c = (Connection) key.attachment();
+                    try {
+                        if (key.isWritable()) {
+                            write(c);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(c);
+                        }
+                    } catch (IOException ex) {
+                        closeConnection(c);
+                    }
+                }
+
+                if (System.currentTimeMillis() - lastIdleCheck >= SELECT_TIMEOUT) {
+                    closeIdle();
+                    lastIdleCheck = System.currentTimeMillis();
+                }
+            } catch (ClosedSelectorException ex) {
+                return;
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            if (connectionCount >= maxConnections) {
+                refusedConnections.incrementAndGet();
+                channel.close();
+                continue;
+            }
+
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+
+            // Generate new IV and send it
+            byte[] iv = new byte[16];
+            random.nextBytes(iv);
+
+            Connection c = new Connection(channel, new IvParameterSpec(iv));
+            c.decoder = new KadTCPStreamDecoder(c.iv, incomingPath, new KadTCPStreamDecoder.Listener() {
+                @Override
+                public boolean acceptContent(KadTCPMessage msg) {
+                    return KademliaTCPServer.this.acceptContent(msg);
+                }
+
+                @Override
+                public void onMessage(KadTCPMessage msg, long index, Path content) throws IOException {
+                    process(c, msg, index, content);
+                }
+            });
+            c.output.add(new Outgoing(ByteBuffer.wrap(iv)));
+            c.outputBytes = iv.length;
+            c.key = channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, c);
+            connectionCount++;
+        }
+    }
+
+    private void read(Connection c) throws IOException {
+        while (canRead(c)) {
+            readBuffer.clear();
+            int n = c.channel.read(readBuffer);
+            if (n < 0) {
+                c.inputEnded = true;
+                break;
+            } else if (n == 0) {
+                break;
+            }
+            c.lastActivity = System.currentTimeMillis();
+
+            readBuffer.flip();
+            byte[] data = new byte[n];
+            readBuffer.get(data);
+            c.inbound.add(data);
+            c.inboundBytes.addAndGet(n);
+        }
+        if (!c.inbound.isEmpty()) {
+            decode(c);
+        }
+        updateInterest(c);
+    }
+
+    /**
+     * Decodes the received data of a connection in a worker, a single task per connection at a time.
+     */
+    private void decode(Connection c) {
+        if (!c.decoding.compareAndSet(false, true)) {
+            return; // The running task takes the new data
+        }
+        Runnable task = () -> {
+            try {
+                byte[] data;
+                while (!c.closed && !c.failed && (data = c.inbound.poll()) != null) {
+                    c.inboundBytes.addAndGet(-data.length);
+                    c.decoder.feed(data, 0, data.length);
+                }
+            } catch (Exception ex) {
+                System.out.println("[WARNING] Invalid request from " + c.channel.socket().getRemoteSocketAddress() + " / Reason: " + ex.getMessage());
+                c.failed = true;
+            } finally {
+                c.decoding.set(false);
+                if (!c.closed) {
+                    requestUpdate(c); // Checks again for data received meanwhile
+                } else if (c.decoding.compareAndSet(false, true)) {
+                    c.decoder.close(); // Closed while decoding
+                }
+            }
+        };
+        try {
+            workers.execute(task);
+        } catch (RejectedExecutionException ex) {
+            // Shutting down (the queue has room for every connection), the selector thread never decodes
+            c.decoding.set(false);
+            c.failed = true;
+            requestUpdate(c);
+        }
+    }
+
+    /**
+     * Admission control for the content of STORE requests. Runs in a worker thread.
+     * @param msg The request.
+     * @return False if the block is already stored or the workers are saturated.
+     */
+    private boolean acceptContent(KadTCPMessage msg) {
+        if (dht.storageService.hasBlockLocal(msg.getRequestKey())) {
+            return false;
+        }
+        if (isSaturated()) {
+            rejectedRequests.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean isSaturated() {
+        return workers.getQueue().size() >= maxQueuedRequests;
+    }
+
+    /**
+     * Serves a request. Runs in a worker thread.
+     * @param c The connection.
+     * @param msg The request.
+     * @param index The frame number in the connection.
+     * @param content The received content of a STORE request, or null if discarded.
+     * @throws IOException
+     */
+    private void process(Connection c, KadTCPMessage msg, long index, Path content) throws IOException {
+        if (index == 0) {
+            // First message: HELLO, or a single operation (older peers)
+            if (msg.isHello()) {
+                c.multiplexed = true;
+                sendFrame(c, KadTCPMessage.createHelloMessage());
+            } else if (msg.isRead()) {
+                if (isSaturated()) {
+                    rejectedRequests.incrementAndGet();
+                    send(c, null, true);
+                } else if (sendBlock(c, msg, false)) {
+                    send(c, null, true);
+                } else {
+                    send(c, KadTCPMessage.createErrorMessage().serializeAndEncrypt(c.iv), true);
+                }
+            } else if (msg.isStore()) {
+                handleStore(msg, content);
+                send(c, null, true);
+            } else {
+                throw new IOException("Unexpected message.");
+            }
+        } else if (msg.isRead()) {
+            if (isSaturated()) {
+                rejectedRequests.incrementAndGet();
+                KadTCPMessage reply = KadTCPMessage.createErrorMessage();
+                reply.setRequestId(msg.getRequestId());
+                sendFrame(c, reply);
+            } else if (!sendBlock(c, msg, true)) {
+                KadTCPMessage reply = KadTCPMessage.createErrorMessage();
+                reply.setRequestId(msg.getRequestId());
+                sendFrame(c, reply);
+            }
+        } else if (msg.isStore()) {
+            KadTCPMessage reply = handleStore(msg, content);
+            reply.setRequestId(msg.getRequestId());
+            sendFrame(c, reply);
+        } else {
+            throw new IOException("Unexpected message.");
+        }
+    }
+
+    /**
+     * Serves a STORE request.
+     * @param msg The request.
+     * @param content The received content, or null if discarded.
+     * @return The reply.
+     */
+    private KadTCPMessage handleStore(KadTCPMessage msg, Path content) {
+        // Store the block if we do not have it.
+        try {
+            if (content != null) {
+                dht.storageService.storeBlockLocal(msg.getRequestKey(), content);
+            } else if (!dht.storageService.hasBlockLocal(msg.getRequestKey())) {
+                return KadTCPMessage.createErrorMessage(); // Saturated
+            }
+            return KadTCPMessage.createAckMessage();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return KadTCPMessage.createErrorMessage();
+        }
+    }
+
+    /**
+     * Serves a READ request, queuing a STORE message whose content is streamed from the block file.
+     * @param c The connection.
+     * @param msg The request.
+     * @param multiplexed True to send it as a frame of a multiplexed connection.
+     * @return False if the block is not stored locally.
+     * @throws IOException
+     */
+    private boolean sendBlock(Connection c, KadTCPMessage msg, boolean multiplexed) throws IOException {
+        KadKey key = msg.getRequestKey();
+        if (!dht.storageService.hasBlockLocal(key)) {
+            return false;
+        }
+
+        FileChannel file;
+        long size;
+        try {
+            file = dht.storageService.openBlockLocal(key);
+            size = file.size();
+        } catch (IOException ex) {
+            return false; // Deleted meanwhile
+        }
+        if (size > KademliaConfiguration.MAX_BLOCK_SIZE) {
+            file.close();
+            return false;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(4 + 4 + 32 + 4);
+        if (multiplexed) {
+            header.putInt(msg.getRequestId());
+        }
+        header.put(KadTCPMessage.serializeStoreHeader(key, (int) size));
+        header.flip();
+
+        synchronized (c) {
+            IvParameterSpec iv = multiplexed ? KadTCPMessage.deriveFrameIv(c.iv, KadTCPMessage.DIRECTION_SERVER, c.sendSeq++) : c.iv;
+            Cipher cipher;
+            try {
+                cipher = KadTCPMessage.createCipher(Cipher.ENCRYPT_MODE, iv);
+            } catch (GeneralSecurityException ex) {
+                file.close();
+                throw new IOException(ex.getMessage());
+            }
+
+            ByteBuffer head = ByteBuffer.allocate(4 + header.remaining());
+            head.putInt((int) (header.remaining() + size));
+            try {
+                cipher.update(header, head);
+            } catch (ShortBufferException ex) {
+                file.close();
+                throw new IOException(ex.getMessage());
+            }
+            head.flip();
+
+            Outgoing o = new Outgoing(head, file, cipher, size);
+            c.output.add(o);
+            c.outputBytes += head.remaining() + size;
+        }
+        requestUpdate(c);
+        return true;
+    }
+
+    /**
+     * Queues a frame of a multiplexed connection. Frames are encrypted in sending order.
+     */
+    private void sendFrame(Connection c, KadTCPMessage msg) {
+        synchronized (c) {
+            byte[] data = msg.serializeAndEncryptFrame(KadTCPMessage.deriveFrameIv(c.iv, KadTCPMessage.DIRECTION_SERVER, c.sendSeq++));
+            c.output.add(new Outgoing(ByteBuffer.wrap(data)));
+            c.outputBytes += data.length;
+        }
+        requestUpdate(c);
+    }
+
+    /**
+     * Queues data.
+     * @param data The data, or null.
+     * @param close True to close the connection after sending it.
+     */
+    private void send(Connection c, byte[] data, boolean close) {
+        synchronized (c) {
+            if (data != null) {
+                c.output.add(new Outgoing(ByteBuffer.wrap(data)));
+                c.outputBytes += data.length;
+            }
+            if (close) {
+                c.closeAfterWrite = true;
+            }
+        }
+        requestUpdate(c);
+    }
+
+    private void write(Connection c) throws IOException {
+        synchronized (c) {
+            while (!c.output.isEmpty()) {
+                Outgoing o = c.output.peek();
+
+                if (o.head.hasRemaining()) {
+                    c.outputBytes -= c.channel.write(o.head);
+                    if (o.head.hasRemaining()) {
+                        break; // Socket buffer full
+                    }
+                }
+
+                if (o.file != null) {
+                    if (o.filling) {
+                        break; // Waiting for the next chunk
+                    }
+                    if (o.chunk.hasRemaining()) {
+                        c.outputBytes -= c.channel.write(o.chunk);
+                        if (o.chunk.hasRemaining()) {
+                            break; // Socket buffer full
+                        }
+                    }
+                    if (o.remaining > 0) {
+                        fillChunk(c, o);
+                        break;
+                    }
+                }
+
+                o.close();
+                c.output.poll();
+            }
+        }
+        c.lastActivity = System.currentTimeMillis();
+        updateInterest(c);
+    }
+
+    /**
+     * Reads and encrypts the next chunk of a block, in a worker (disk I/O).
+     */
+    private void fillChunk(Connection c, Outgoing o) {
+        o.filling = true;
+        Runnable fill = () -> {
+            try {
+                o.fill();
+            } catch (Exception ex) {
+                System.out.println("[WARNING] Could not read block for " + c.channel.socket().getRemoteSocketAddress() + " / Reason: " + ex.getMessage());
+                c.failed = true;
+            } finally {
+                o.filling = false;
+                requestUpdate(c);
+            }
+        };
+        try {
+            workers.execute(fill);
+        } catch (RejectedExecutionException ex) {
+            // Shutting down (the queue has room for every connection), the selector thread never reads blocks
+            o.filling = false;
+            c.failed = true;
+            requestUpdate(c);
+        }
+    }
+
+    /**
+     * Asks the selector thread to update the interest of a connection.
+     */
+    private void requestUpdate(Connection c) {
+        updates.add(c);
+        selector.wakeup();
+    }
+
+    /**
+     * Updates the operations the selector waits for. Only called from the selector thread.
+     */
+    private void updateInterest(Connection c) {
+        if (c.closed) {
+            return;
+        }
+        if (c.failed) {
+            closeConnection(c);
+            return;
+        }
+
+        boolean hasOutput;
+        boolean writable;
+        synchronized (c) {
+            Outgoing o = c.output.peek();
+            hasOutput = o != null;
+            writable = o != null && (o.head.hasRemaining() || !o.filling);
+        }
+
+        if (!hasOutput && (c.closeAfterWrite || (c.inputEnded && !c.decoding.get() && c.inbound.isEmpty()))) {
+            closeConnection(c);
+            return;
+        }
+        if (!c.inbound.isEmpty()) {
+            decode(c);
+        }
+
+        int ops = 0;
+        if (writable) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (canRead(c)) {
+            ops |= SelectionKey.OP_READ;
+        }
+        c.key.interestOps(ops);
+    }
+
+    private boolean canRead(Connection c) {
+        if (c.closed || c.closeAfterWrite || c.failed || c.inputEnded) {
+            return false;
+        } else {
+            return c.inboundBytes.get() < MAX_PENDING_INPUT && c.outputBytes < MAX_PENDING_OUTPUT;
+        }
+    }
+
+    /**
+     * Closes the connections without activity. Multiplexed connections are closed by the clients before.
+     */
+    private void closeIdle() {
+        long now = System.currentTimeMillis();
+        List<Connection> idle = new ArrayList<>();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                Connection c = (Connection) key.attachment();
+                long timeout = c.multiplexed ? KademliaConfiguration.TCP_IDLE_TIMEOUT * 2 : KademliaConfiguration.OPERATION_TIMEOUT;
+                if (!c.decoding.get() && c.inbound.isEmpty() && now - c.lastActivity > timeout) {
+                    idle.add(c);
+                }
+            }
+        }
+        for (Connection c : idle) {
+            closeConnection(c);
+        }
+    }
+
+    private void closeConnection(Connection c) {
+        if (c.closed) {
+            return;
+        }
+        c.closed = true;
+        connectionCount--;
+        c.key.cancel();
+        try {
+            c.channel.close();
+        } catch (IOException e) {
+        }
+        synchronized (c) {
+            for (Outgoing o : c.output) {
+                o.close();
+            }
+            c.output.clear();
+        }
+        // Without blocking the selector thread: the running decoding task closes the decoder
+        if (c.decoding.compareAndSet(false, true)) {
+            closeDecoder(c);
+        }
+    }
+
+    /**
+     * Closes the decoder of a closed connection in a worker (it deletes the content being received).
+     * The caller took the decoding slot, so no task is feeding the decoder.
+     */
+    private void closeDecoder(Connection c) {
+        try {
+            workers.execute(c.decoder::close);
+        } catch (RejectedExecutionException ex) {
+            c.decoder.close(); // Shutting down
+        }
+    }
+
+    /**
+     * @return The number of open connections.
+     */
+    public int getConnectionCount() {
+        return connectionCount;
+    }
+
+    /**
+     * @return The number of requests waiting for a worker.
+     */
+    public int getQueuedRequests() {
+        return workers.getQueue().size();
+    }
+
+    /**
+     * @return The number of connections refused because of the limit.
+     */
+    public long getRefusedConnections() {
+        return refusedConnections.get();
+    }
+
+    /**
+     * @return The number of requests rejected because the workers were saturated.
+     */
+    public long getRejectedRequests() {
+        return rejectedRequests.get();
+    }
+
+    /**
+     * State of a connection.
+     */
+    private static class Connection {
+        private final SocketChannel channel;
+        private final IvParameterSpec iv;
+        private SelectionKey key;
+
+        // Received data, decoded by a worker
+        private final Queue<byte[]> inbound;
+        private final AtomicLong inboundBytes;
+        private final AtomicBoolean decoding;
+        private KadTCPStreamDecoder decoder;
+        private boolean inputEnded;
+        private volatile boolean closed;
+
+        // Guarded by the connection
+        private final Queue<Outgoing> output;
+        private volatile long outputBytes;
+        private long sendSeq;
+
+        private volatile boolean multiplexed;
+        private volatile boolean closeAfterWrite;
+        private volatile boolean failed;
+        private volatile long lastActivity;
+
+        private Connection(SocketChannel channel, IvParameterSpec iv) {
+            this.channel = channel;
+            this.iv = iv;
+            this.inbound = new ConcurrentLinkedQueue<>();
+            this.inboundBytes = new AtomicLong(0);
+            this.decoding = new AtomicBoolean(false);
+            this.inputEnded = false;
+            this.closed = false;
+            this.output = new ArrayDeque<>();
+            this.outputBytes = 0;
+            this.sendSeq = 0;
+            this.multiplexed = false;
+            this.closeAfterWrite = false;
+            this.failed = false;
+            this.lastActivity = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Data waiting to be sent: an encrypted message, or a message header followed by a block file.
+     */
+    private static class Outgoing {
+        private final ByteBuffer head;
+
+        // Streamed content
+        private final FileChannel file;
+        private final Cipher cipher;
+        private final ByteBuffer chunk;
+        private long position;
+        private long remaining;
+        private volatile boolean filling;
+
+        private Outgoing(ByteBuffer head) {
+            this(head, null, null, 0);
+        }
+
+        private Outgoing(ByteBuffer head, FileChannel file, Cipher cipher, long length) {
+            this.head = head;
+            this.file = file;
+            this.cipher = cipher;
+            this.position = 0;
+            this.remaining = length;
+            this.filling = false;
+            if (file != null) {
+                this.chunk = ByteBuffer.allocateDirect((int) Math.min(CHUNK_SIZE, Math.max(1, length)));
+                this.chunk.flip(); // Empty
+            } else {
+                this.chunk = null;
+            }
+        }
+
+        /**
+         * Reads and encrypts the next chunk of the file.
+         */
+        private void fill() throws IOException, ShortBufferException {
+            ByteBuffer plain = chunkReadBuffer.get();
+            plain.clear();
+            plain.limit((int) Math.min(plain.capacity(), Math.min(remaining, chunk.capacity())));
+            while (plain.hasRemaining()) {
+                int n = file.read(plain, position);
+                if (n < 0) {
+                    throw new EOFException("The block file is shorter than expected.");
+                }
+                position += n;
+            }
+            plain.flip();
+            remaining -= plain.remaining();
+            chunk.clear();
+            cipher.update(plain, chunk);
+            chunk.flip();
+        }
+
+        private void close() {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package services.kademlia;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short-lived cache of node lookup results, shared by the keys with the same prefix.
+ * The closest nodes to keys that share the leading bits are (almost) the same, so a lookup
+ * serves the keys of its region of the keyspace until the TTL expires or the routing table
+ * changes the contacts of the buckets the result came from (the bucket of the key and the
+ * buckets of the nodes found).
+ */
+public class LookupCache {
+
+    private final Cache<Long, Entry> entries;
+    private final int prefixBits;
+
+    /**
+     * @param maxEntries Max number of regions to keep.
+     * @param ttl Time to keep a lookup result (ms)
+     * @param prefixBits Leading bits of the keys that define a region (1 - 64)
+     */
+    public LookupCache(long maxEntries, long ttl, int prefixBits) {
+        this.entries = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+        this.prefixBits = Math.max(1, Math.min(64, prefixBits));
+    }
+
+    /**
+     * Gets the closest nodes to a key from a previous lookup.
+     * @param key The kad_key.
+     * @param table The routing table, to check that its buckets did not change since the lookup.
+     * @return The closest nodes, sorted by distance, or null if not cached.
+     */
+    public List<Node> get(KadKey key, RoutingTable table) {
+        Entry entry = entries.getIfPresent(prefix(key));
+        if (entry == null || !entry.isCurrent(table, table.getBucketId(key))) {
+            return null;
+        }
+
+        TreeSet<Node> sorted = new TreeSet<>(new DistanceComparator(key));
+        sorted.addAll(entry.nodes);
+        return new ArrayList<>(sorted);
+    }
+
+    /**
+     * Stores the result of a lookup.
+     * @param key The looked up kad_key.
+     * @param table The routing table, to record the epochs of the buckets the result came from.
+     * @param nodes The closest nodes found.
+     */
+    public void put(KadKey key, RoutingTable table, List<Node> nodes) {
+        if (nodes.isEmpty()) {
+            return;
+        }
+
+        Set<Integer> bucketIds = new LinkedHashSet<>();
+        bucketIds.add(table.getBucketId(key));
+        for (Node node : nodes) {
+            bucketIds.add(table.getBucketId(node.getIdentifier()));
+        }
+
+        int[] ids = new int[bucketIds.size()];
+        long[] epochs = new long[ids.length];
+        int i = 0;
+        for (int bucketId : bucketIds) {
+            ids[i] = bucketId;
+            epochs[i] = table.getBucketEpoch(bucketId);
+            i++;
+        }
+        entries.put(prefix(key), new Entry(ids, epochs, new ArrayList<>(nodes)));
+    }
+
+    /**
+     * Removes the result for the region of a key (its nodes did not work)
+     * @param key The kad_key.
+     * @return True if there was a cached result.
+     */
+    public boolean invalidate(KadKey key) {
+        return entries.asMap().remove(prefix(key)) != null;
+    }
+
+    /**
+     * @return Hits, misses and evictions.
+     */
+    public CacheStats getStats() {
+        return entries.stats();
+    }
+
+    private long prefix(KadKey key) {
+        byte[] bytes = key.getBytes();
+        long high = 0;
+        for (int i = 0; i < 8; i++) {
+            high = (high << 8) | (bytes[i] & 0xFF);
+        }
+        return prefixBits == 64 ? high : high >>> (64 - prefixBits);
+    }
+
+    private static class Entry {
+        private final int[] bucketIds;
+        private final long[] epochs;
+        private final List<Node> nodes;
+
+        private Entry(int[] bucketIds, long[] epochs, List<Node> nodes) {
+            this.bucketIds = bucketIds;
+            this.epochs = epochs;
+            this.nodes = nodes;
+        }
+
+        /**
+         * @return True if the bucket of the key is one of the entry and none of them changed.
+         */
+        private boolean isCurrent(RoutingTable table, int keyBucketId) {
+            boolean keyBucket = false;
+            for (int i = 0; i < bucketIds.length; i++) {
+                if (table.getBucketEpoch(bucketIds[i]) != epochs[i]) {
+                    return false;
+                }
+                keyBucket |= bucketIds[i] == keyBucketId;
+            }
+            return keyBucket;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package services.kademlia;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of the node lookups: how many hops they took, how many messages they sent and how long they lasted.
+ */
+public class LookupMetrics {
+
+    private static final int MAX_HOPS = 16;
+
+    private final AtomicLong lookups;
+    private final AtomicLong timedOut;
+    private final AtomicLong messages;
+    private final AtomicLong failures;
+    private final AtomicLong hops;
+    private final AtomicLong time;
+    private final AtomicLongArray hopHistogram;
+
+    public LookupMetrics() {
+        this.lookups = new AtomicLong(0);
+        this.timedOut = new AtomicLong(0);
+        this.messages = new AtomicLong(0);
+        this.failures = new AtomicLong(0);
+        this.hops = new AtomicLong(0);
+        this.time = new AtomicLong(0);
+        this.hopHistogram = new AtomicLongArray(MAX_HOPS + 1);
+    }
+
+    /**
+     * Records a finished lookup.
+     * @param hopCount Hops from the routing table to the closest node found.
+     * @param sent Requests sent.
+     * @param failed Requests that failed or timed out.
+     * @param millis Duration (ms)
+     */
+    public void record(int hopCount, int sent, int failed, long millis) {
+        lookups.incrementAndGet();
+        messages.addAndGet(sent);
+        failures.addAndGet(failed);
+        hops.addAndGet(hopCount);
+        time.addAndGet(millis);
+        hopHistogram.incrementAndGet(Math.min(hopCount, MAX_HOPS));
+    }
+
+    /**
+     * Records a lookup that did not finish in time.
+     */
+    public void recordTimeout() {
+        timedOut.incrementAndGet();
+    }
+
+    /**
+     * @return The finished lookups.
+     */
+    public long getLookupCount() {
+        return lookups.get();
+    }
+
+    /**
+     * @return The lookups that timed out.
+     */
+    public long getTimedOutCount() {
+        return timedOut.get();
+    }
+
+    /**
+     * @return The average requests sent per lookup.
+     */
+    public double getAverageMessages() {
+        long n = lookups.get();
+        return n == 0 ? 0 : (double) messages.get() / n;
+    }
+
+    /**
+     * @return The average failed requests per lookup.
+     */
+    public double getAverageFailures() {
+        long n = lookups.get();
+        return n == 0 ? 0 : (double) failures.get() / n;
+    }
+
+    /**
+     * @return The average hops per lookup.
+     */
+    public double getAverageHops() {
+        long n = lookups.get();
+        return n == 0 ? 0 : (double) hops.get() / n;
+    }
+
+    /**
+     * @return The average lookup duration (ms)
+     */
+    public double getAverageTime() {
+        long n = lookups.get();
+        return n == 0 ? 0 : (double) time.get() / n;
+    }
+
+    /**
+     * @return Number of lookups by hop count, the last one counts MAX_HOPS or more.
+     */
+    public long[] getHopHistogram() {
+        long[] result = new long[hopHistogram.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = hopHistogram.get(i);
+        }
+        return result;
+    }
+}
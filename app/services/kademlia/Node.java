@@ -2,6 +2,7 @@ package services.kademlia;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.Objects;
 
 /**
  * Represents a known node
@@ -65,6 +66,11 @@ public class Node {
         }
     }
 
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(this.identifier);
+    }
+
     /**
      * Connects to the node
      * @return The socket
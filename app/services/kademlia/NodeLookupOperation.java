@@ -4,30 +4,45 @@ import services.DHTService;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+/**
+ * Iterative node lookup.
+ * Keeps a shortlist of the K closest nodes known (plus K spares for the ones that fail), asks
+ * CONCURRENCY (alpha) of them at a time, and finishes as soon as the K closest have replied.
+ * When a reply brings no node closer than the closest known, the next requests go to all the
+ * K closest not asked yet.
+ */
 public class NodeLookupOperation implements KadMessageReceiver {
     private static final int NODE_STATUS_UNASKED = 0;
     private static final int NODE_STATUS_AWAITING = 1;
     private static final int NODE_STATUS_ASKED = 2;
-    private static final int NODE_STATUS_FAILED = 3;
 
     private final DHTService dht;
     private final KadKey key;
 
-    private final Map<Node, Integer> nodes;
-    private final DistanceComparator comparator;
+    private final TreeMap<Node, Candidate> shortlist;
+    private final Set<Node> contacted;
     private final Map<Integer, Node> messagesTransiting;
 
     private boolean finished;
     private final Semaphore semaphore;
     private boolean timedOut;
 
+    private int parallelism;
+    private final long startTime;
+    private int sent;
+    private int failed;
+
 
 
     public NodeLookupOperation(DHTService dht, KadKey key) {
@@ -35,61 +50,60 @@ public class NodeLookupOperation implements KadMessageReceiver {
         this.finished = false;
         this.dht = dht;
         this.key = key;
-        this.comparator = new DistanceComparator(key);
-        this.nodes = new TreeMap<>(this.comparator);
+        this.shortlist = new TreeMap<>(new DistanceComparator(key));
+        this.contacted = new HashSet<>();
         this.semaphore = new Semaphore(0);
-        this.messagesTransiting = new TreeMap<>();
+        this.messagesTransiting = new HashMap<>();
+        this.parallelism = KademliaConfiguration.CONCURRENCY;
+        this.startTime = System.currentTimeMillis();
+        this.sent = 0;
+        this.failed = 0;
     }
 
-    public void addNodes(List<Node> list)
+    /**
+     * Adds nodes to the shortlist, if they were not contacted.
+     * @param list The nodes.
+     * @param hop Hops from the routing table to the nodes.
+     */
+    private void addNodes(List<Node> list, int hop)
     {
         for (Node o : list)
         {
-            /* If this node is not in the list, add the node */
-            if (!nodes.containsKey(o))
+            if (!contacted.contains(o) && !shortlist.containsKey(o))
             {
-                nodes.put(o, NODE_STATUS_UNASKED);
+                shortlist.put(o, new Candidate(hop));
             }
         }
+        trimShortlist();
     }
 
-    private List<Node> closestNodes(Integer status)
+    /**
+     * Removes the nodes farther than the 2K-th, unless there is a request to them in flight.
+     */
+    private void trimShortlist()
     {
-        List<Node> closestNodes = new ArrayList<>(KademliaConfiguration.K);
-        int remainingSpaces = KademliaConfiguration.K;
-
-        for (Map.Entry e : this.nodes.entrySet())
+        int position = 0;
+        Iterator<Map.Entry<Node, Candidate>> it = shortlist.entrySet().iterator();
+        while (it.hasNext())
         {
-            if (status.equals(e.getValue()))
+            Map.Entry<Node, Candidate> e = it.next();
+            if (position++ >= KademliaConfiguration.K * 2 && e.getValue().status != NODE_STATUS_AWAITING)
             {
-                /* We got one with the required status, now add it */
-                closestNodes.add((Node) e.getKey());
-                if (--remainingSpaces == 0)
-                {
-                    break;
-                }
+                it.remove();
             }
         }
-
-        return closestNodes;
     }
 
-    private List<Node> closestNodesNotFailed(Integer status)
+    private List<Node> closestNodes(int status)
     {
         List<Node> closestNodes = new ArrayList<>(KademliaConfiguration.K);
-        int remainingSpaces = KademliaConfiguration.K;
 
-        for (Map.Entry<Node, Integer> e : this.nodes.entrySet())
+        for (Map.Entry<Node, Candidate> e : this.shortlist.entrySet())
         {
-            if (e.getValue() != NODE_STATUS_FAILED)
+            if (e.getValue().status == status)
             {
-                if (status.equals(e.getValue()))
-                {
-                    /* We got one with the required status, now add it */
-                    closestNodes.add(e.getKey());
-                }
-
-                if (--remainingSpaces == 0)
+                closestNodes.add(e.getKey());
+                if (closestNodes.size() == KademliaConfiguration.K)
                 {
                     break;
                 }
@@ -100,20 +114,33 @@ public class NodeLookupOperation implements KadMessageReceiver {
     }
 
 
-    public void execute() {
-        /* Add all nodes */
-        this.addNodes(dht.getRoutingTable().getAllNodes());
-
+    public synchronized void execute() {
         /* Local node already asked, we are online if we are executing this */
-        this.nodes.put(dht.getLocalNode(), NODE_STATUS_ASKED);
+        this.contacted.add(dht.getLocalNode());
+        Candidate local = new Candidate(0);
+        local.status = NODE_STATUS_ASKED;
+        this.shortlist.put(dht.getLocalNode(), local);
+
+        /* Start with the closest known nodes, with spares for the ones that fail */
+        this.addNodes(dht.getRoutingTable().findClosest(this.key, KademliaConfiguration.K * 2), 0);
 
         /* Start */
         this.askNodesOrFinish();
     }
 
-    public void finalize() {
+    private void finish() {
         if (finished) return;
         finished = true;
+
+        int hops = 0;
+        for (Map.Entry<Node, Candidate> e : this.shortlist.entrySet()) {
+            if (e.getValue().status == NODE_STATUS_ASKED) {
+                hops = e.getValue().hop; // The closest node that replied
+                break;
+            }
+        }
+        dht.getLookupMetrics().record(hops, sent, failed, System.currentTimeMillis() - startTime);
+
         semaphore.release();
     }
 
@@ -124,78 +151,136 @@ public class NodeLookupOperation implements KadMessageReceiver {
         if (finished) {
             return;
         }
-        if (this.messagesTransiting.size() >= KademliaConfiguration.CONCURRENCY) {
-            // Too many messages sent right now, wait
-            return;
-        }
-
-        List<Node> unasked = closestNodesNotFailed(NODE_STATUS_UNASKED);
-
-        //System.out.println("Unasked nodes:");
-        //for (Node n : unasked) {
-           // System.out.println(" - " + n.toString());
-       // }
-
-        if (unasked.isEmpty() && this.messagesTransiting.isEmpty()) {
-            // Finish!
-            this.finalize();
-            return;
-        }
 
-        for (int i = 0; (this.messagesTransiting.size() < KademliaConfiguration.CONCURRENCY) && (i < unasked.size()); i++) {
-            Node node = unasked.get(i);
+        // Ask the K closest not asked yet, while there is room in the window. A node that cannot
+        // be reached is removed, so the next candidate (a spare if needed) takes its place
+        while (this.messagesTransiting.size() < this.parallelism) {
+            Node node = this.nextUnasked();
+            if (node == null) {
+                break;
+            }
 
             int commId = dht.getNextCommId();
 
             // Status is now awaiting
-            this.nodes.put(node, NODE_STATUS_AWAITING);
+            this.shortlist.get(node).status = NODE_STATUS_AWAITING;
+            this.contacted.add(node);
 
             // Add message
             messagesTransiting.put(commId, node);
+            sent++;
 
             try {
                 dht.sendMessageWithAsyncReply(node, KadUDPMessage.createLookupMessage(dht.getLocalNode(), commId, this.key), this);
             } catch (IOException e) {
-                // Set failed
-                nodes.put(node, NODE_STATUS_FAILED);
-
-                // Set unresponsive
-                dht.getRoutingTable().setUnresponsiveContact(node);
-
                 // Remove from messages transiting
                 messagesTransiting.remove(commId);
+
+                this.nodeFailed(node);
             }
         }
+
+        // Finished when all the K closest replied (or failed, and there are no more candidates)
+        if (this.nextUnasked() == null && !this.isWaitingForClosest()) {
+            this.finish();
+        }
+    }
+
+    /**
+     * @return The closest node not asked yet among the K closest, or null.
+     */
+    private Node nextUnasked() {
+        int position = 0;
+        for (Map.Entry<Node, Candidate> e : this.shortlist.entrySet()) {
+            if (position++ >= KademliaConfiguration.K) {
+                break;
+            }
+            if (e.getValue().status == NODE_STATUS_UNASKED) {
+                return e.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return True if a request to one of the K closest is in flight.
+     */
+    private boolean isWaitingForClosest() {
+        int position = 0;
+        for (Map.Entry<Node, Candidate> e : this.shortlist.entrySet()) {
+            if (position++ >= KademliaConfiguration.K) {
+                break;
+            }
+            if (e.getValue().status == NODE_STATUS_AWAITING) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes a node that did not reply.
+     * @param node The node.
+     */
+    private void nodeFailed(Node node) {
+        failed++;
+
+        // Not a candidate anymore
+        shortlist.remove(node);
+
+        // Set unresponsive
+        dht.getRoutingTable().setUnresponsiveContact(node);
     }
 
 
     public List<Node> waitForResult(long timeout) throws InterruptedException, TimeoutException {
         if (!this.semaphore.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
             // Timed out
-            this.timedOut = true;
+            synchronized (this) {
+                this.timedOut = true;
+            }
+            dht.getLookupMetrics().recordTimeout();
             throw new TimeoutException();
         }
-        return closestNodes(NODE_STATUS_ASKED);
+        synchronized (this) {
+            return closestNodes(NODE_STATUS_ASKED);
+        }
     }
 
     @Override
     public synchronized void receive(KadUDPMessage message) {
-        this.messagesTransiting.remove(message.getCommId());
+        Node asked = this.messagesTransiting.remove(message.getCommId());
 
         //System.out.println("Receiving YES");
 
         if (!message.isLookupReply()) {
-            return; // Not the message we are looking for
+            // Not the message we are looking for. The node will not send the reply, so it failed
+            if (asked != null && !finished) {
+                this.nodeFailed(asked);
+                this.askNodesOrFinish();
+            }
+            return;
         }
 
         /* Insert the node into the routing table */
         dht.getRoutingTable().insert(message.getOrigin(), message.getTimestamp());
 
+        if (finished || asked == null) {
+            return; // Late reply, the K closest already replied
+        }
+
         // Confirmed the node who replied to us
-        this.nodes.put(message.getOrigin(), NODE_STATUS_ASKED);
+        Candidate candidate = this.shortlist.get(asked);
+        if (candidate == null) {
+            return;
+        }
+        candidate.status = NODE_STATUS_ASKED;
 
-        // Add the nodes we received from the peer
-        this.addNodes(message.getNodes());
+        // Add the nodes we received from the peer. If none is closer than the closest known,
+        // the lookup is converging: ask all the K closest instead of alpha at a time
+        Node closest = this.shortlist.firstKey();
+        this.addNodes(message.getNodes(), candidate.hop + 1);
+        this.parallelism = closest.equals(this.shortlist.firstKey()) ? KademliaConfiguration.K : KademliaConfiguration.CONCURRENCY;
 
         // Continue
         this.askNodesOrFinish();
@@ -203,16 +288,27 @@ public class NodeLookupOperation implements KadMessageReceiver {
 
     @Override
     public synchronized void timeout(int commId) {
-        Node n = this.messagesTransiting.get(commId);
-        this.messagesTransiting.remove(commId);
-
-        // Set failed
-        nodes.put(n, NODE_STATUS_FAILED);
+        Node n = this.messagesTransiting.remove(commId);
+        if (n == null) {
+            return;
+        }
 
-        // Set unresponsive
-        dht.getRoutingTable().setUnresponsiveContact(n);
+        this.nodeFailed(n);
 
         // Continue
         this.askNodesOrFinish();
     }
+
+    /**
+     * A node of the shortlist.
+     */
+    private static class Candidate {
+        private int status;
+        private final int hop;
+
+        private Candidate(int hop) {
+            this.status = NODE_STATUS_UNASKED;
+            this.hop = hop;
+        }
+    }
 }
@@ -0,0 +1,217 @@
+package services.kademlia;
+
+import javax.crypto.spec.IvParameterSpec;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Persistent, multiplexed TCP connection to a peer.
+ * Many READ / STORE requests are sent through the same connection, identified by request id.
+ * A reader thread dispatches the replies to the waiting requests.
+ */
+public class PeerConnection implements Closeable {
+
+    private final Node node;
+    private final Socket socket;
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    private final IvParameterSpec connectionIv;
+
+    private final Map<Integer, CompletableFuture<KadTCPMessage>> pending;
+    private final AtomicInteger nextRequestId;
+
+    private long sendSeq;
+    private long receiveSeq;
+
+    private volatile long lastUsed;
+    private volatile boolean closed;
+
+    private PeerConnection(Node node, Socket socket, IvParameterSpec connectionIv) throws IOException {
+        this.node = node;
+        this.socket = socket;
+        this.input = new DataInputStream(socket.getInputStream());
+        this.output = new DataOutputStream(socket.getOutputStream());
+        this.connectionIv = connectionIv;
+        this.pending = new ConcurrentHashMap<>();
+        this.nextRequestId = new AtomicInteger(0);
+        this.sendSeq = 1;
+        this.receiveSeq = 1;
+        this.lastUsed = System.currentTimeMillis();
+        this.closed = false;
+    }
+
+    /**
+     * Opens a multiplexed connection.
+     * @param node The peer.
+     * @return The connection.
+     * @throws LegacyPeerException If the peer does not support multiplexed connections.
+     * @throws IOException If the peer could not be reached.
+     */
+    public static PeerConnection open(Node node) throws IOException {
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(node.getAddress(), node.getPort()), (int) KademliaConfiguration.RESPONSE_TIMEOUT);
+            s.setSoTimeout((int) KademliaConfiguration.RESPONSE_TIMEOUT);
+            s.setTcpNoDelay(true);
+
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+
+            // Receive IV
+            byte[] iv = new byte[16];
+            in.readFully(iv);
+            IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
+
+            // Send HELLO, older peers close the connection
+            out.write(KadTCPMessage.createHelloMessage().serializeAndEncrypt(ivParameterSpec));
+            out.flush();
+
+            KadTCPMessage reply = new KadTCPMessage();
+            try {
+                reply.readFromEncryptedFrame(in, KadTCPMessage.deriveFrameIv(ivParameterSpec, KadTCPMessage.DIRECTION_SERVER, 0));
+            } catch (EOFException | SocketException ex) {
+                throw new LegacyPeerException(); // Closed or reset after the unknown message
+            }
+            if (!reply.isHello()) {
+                throw new LegacyPeerException();
+            }
+
+            s.setSoTimeout(0); // Idle connections are closed by the pool
+
+            PeerConnection conn = new PeerConnection(node, s, ivParameterSpec);
+            Thread reader = new Thread(conn::readLoop, "kad-peer-" + node.getAddress() + ":" + node.getPort());
+            reader.setDaemon(true);
+            reader.start();
+            return conn;
+        } catch (IOException ex) {
+            try {
+                s.close();
+            } catch (IOException e) {
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Sends a request.
+     * @param msg The message (READ or STORE).
+     * @return The future reply.
+     */
+    public CompletableFuture<KadTCPMessage> send(KadTCPMessage msg) {
+        CompletableFuture<KadTCPMessage> reply = new CompletableFuture<>();
+        int requestId = nextRequestId.incrementAndGet();
+        msg.setRequestId(requestId);
+        pending.put(requestId, reply);
+        this.lastUsed = System.currentTimeMillis();
+
+        if (closed) {
+            pending.remove(requestId);
+            reply.completeExceptionally(new IOException("Connection closed."));
+            return reply;
+        }
+
+        try {
+            synchronized (output) {
+                output.write(msg.serializeAndEncryptFrame(KadTCPMessage.deriveFrameIv(connectionIv, KadTCPMessage.DIRECTION_CLIENT, sendSeq++)));
+                output.flush();
+            }
+        } catch (IOException ex) {
+            this.close();
+            pending.remove(requestId);
+            reply.completeExceptionally(ex);
+        }
+
+        return reply;
+    }
+
+    /**
+     * Cancels a request that will not be waited anymore.
+     * @param msg The sent message.
+     */
+    public void forget(KadTCPMessage msg) {
+        pending.remove(msg.getRequestId());
+    }
+
+    private void readLoop() {
+        try {
+            while (!closed) {
+                KadTCPMessage msg = new KadTCPMessage();
+                msg.readFromEncryptedFrame(input, KadTCPMessage.deriveFrameIv(connectionIv, KadTCPMessage.DIRECTION_SERVER, receiveSeq++));
+                this.lastUsed = System.currentTimeMillis();
+                CompletableFuture<KadTCPMessage> reply = pending.remove(msg.getRequestId());
+                if (reply != null) {
+                    reply.complete(msg);
+                }
+            }
+        } catch (EOFException ex) {
+            // Closed by the peer (idle)
+        } catch (IOException ex) {
+            if (!closed) {
+                System.out.println("[WARNING] Connection to " + node.toString() + " lost / Reason: " + ex.getMessage());
+            }
+        }
+        this.close();
+    }
+
+    /**
+     * @return The number of requests waiting for reply.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return The last time the connection was used (ms).
+     */
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public Node getNode() {
+        return node;
+    }
+
+    /**
+     * Closes the connection, failing the pending requests.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+        for (Integer id : pending.keySet()) {
+            CompletableFuture<KadTCPMessage> reply = pending.remove(id);
+            if (reply != null) {
+                reply.completeExceptionally(new IOException("Connection closed."));
+            }
+        }
+    }
+
+    /**
+     * The peer does not support multiplexed connections.
+     */
+    public static class LegacyPeerException extends IOException {
+        public LegacyPeerException() {
+            super("Peer does not support multiplexed connections.");
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package services.kademlia;
+
+import javax.crypto.spec.IvParameterSpec;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Pool of persistent connections to other peers, for block transfers.
+ * Up to TCP_POOL_SIZE multiplexed connections are kept per peer, and closed when idle.
+ * Peers that do not support multiplexed connections are served with a connection per operation.
+ */
+public class PeerConnectionPool {
+
+    private static final long LEGACY_RETRY_INTERVAL = 10 * 60 * 1000;
+
+    private final Map<String, PeerConnections> peers;
+    private final Map<String, Long> legacyPeers;
+
+    private boolean closed;
+
+    public PeerConnectionPool() {
+        this.peers = new HashMap<>();
+        this.legacyPeers = new HashMap<>();
+        this.closed = false;
+    }
+
+    /**
+     * Reads a block from a peer.
+     * @param node The peer.
+     * @param key The block kad_key.
+     * @return The block content, or null if the peer does not have it.
+     * @throws IOException If the peer could not be reached.
+     */
+    public byte[] read(Node node, KadKey key) throws IOException {
+        KadTCPMessage reply;
+        if (isLegacy(node)) {
+            reply = legacyRequest(node, KadTCPMessage.createReadMessage(key), true);
+        } else {
+            reply = request(node, KadTCPMessage.createReadMessage(key));
+            if (reply == null) {
+                reply = legacyRequest(node, KadTCPMessage.createReadMessage(key), true);
+            }
+        }
+        if (reply.isStore() && reply.getRequestKey().equals(key)) {
+            return reply.getContent();
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Stores a block in a peer.
+     * @param node The peer.
+     * @param key The block kad_key.
+     * @param content The block content.
+     * @throws IOException If the peer could not be reached or could not store the block.
+     */
+    public void store(Node node, KadKey key, byte[] content) throws IOException {
+        if (isLegacy(node)) {
+            legacyRequest(node, KadTCPMessage.createStoreMessage(key, content), false);
+            return;
+        }
+        KadTCPMessage reply = request(node, KadTCPMessage.createStoreMessage(key, content));
+        if (reply == null) {
+            legacyRequest(node, KadTCPMessage.createStoreMessage(key, content), false);
+        } else if (!reply.isAck()) {
+            throw new IOException("The peer could not store the block.");
+        }
+    }
+
+    /**
+     * Sends a request through a multiplexed connection.
+     * @param node The peer.
+     * @param msg The request.
+     * @return The reply, or null if the peer does not support multiplexed connections.
+     * @throws IOException
+     */
+    private KadTCPMessage request(Node node, KadTCPMessage msg) throws IOException {
+        PeerConnection conn;
+        try {
+            conn = acquire(node);
+        } catch (PeerConnection.LegacyPeerException ex) {
+            markLegacy(node);
+            return null;
+        }
+
+        CompletableFuture<KadTCPMessage> reply = conn.send(msg);
+        try {
+            return reply.get(KademliaConfiguration.TCP_REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            conn.forget(msg);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + node.toString());
+        } catch (TimeoutException ex) {
+            conn.forget(msg);
+            throw new IOException("Request to " + node.toString() + " timed out.");
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Gets a connection for a peer: an idle one, a new one if the cap is not reached, or the least loaded one.
+     * If the cap is reached by connections still being opened, waits for them.
+     * @param node The peer.
+     * @return The connection.
+     * @throws IOException
+     */
+    private PeerConnection acquire(Node node) throws IOException {
+        PeerConnections conns;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Connection pool closed.");
+            }
+            conns = peers.computeIfAbsent(peerId(node), k -> new PeerConnections());
+            conns.users++; // Not removed from the pool meanwhile
+        }
+
+        try {
+            return acquire(node, conns);
+        } finally {
+            synchronized (this) {
+                conns.users--;
+            }
+        }
+    }
+
+    /**
+     * Gets a connection from the connections to a peer, kept in the pool by the caller.
+     */
+    private PeerConnection acquire(Node node, PeerConnections conns) throws IOException {
+        long deadline = System.currentTimeMillis() + KademliaConfiguration.TCP_REQUEST_TIMEOUT;
+        synchronized (conns) {
+            while (true) {
+                conns.removeClosed();
+                PeerConnection best = conns.leastLoaded();
+                if (best != null && (best.getPendingCount() == 0 || conns.size() >= KademliaConfiguration.TCP_POOL_SIZE)) {
+                    return best;
+                }
+                if (conns.size() < KademliaConfiguration.TCP_POOL_SIZE) {
+                    conns.opening++;
+                    break;
+                }
+
+                // The cap is reached and no connection is open yet, wait for the ones being opened
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("Timed out waiting for a connection to " + node.toString());
+                }
+                try {
+                    conns.wait(remaining);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for " + node.toString());
+                }
+            }
+        }
+
+        // Connect outside the lock, other requests keep using the open connections
+        PeerConnection conn = null;
+        try {
+            conn = PeerConnection.open(node);
+            return conn;
+        } finally {
+            synchronized (conns) {
+                conns.opening--;
+                if (conn != null) {
+                    conns.connections.add(conn);
+                }
+                conns.notifyAll(); // Opened, or a slot to open another one
+            }
+        }
+    }
+
+    /**
+     * Closes the connections not used for TCP_IDLE_TIMEOUT, and forgets the peers without connections.
+     */
+    public void closeIdleConnections() {
+        long limit = System.currentTimeMillis() - KademliaConfiguration.TCP_IDLE_TIMEOUT;
+        List<PeerConnections> all;
+        synchronized (this) {
+            all = new ArrayList<>(peers.values());
+        }
+        for (PeerConnections conns : all) {
+            synchronized (conns) {
+                for (PeerConnection conn : conns.connections) {
+                    if (conn.getPendingCount() == 0 && conn.getLastUsed() < limit) {
+                        conn.close();
+                    }
+                }
+                conns.removeClosed();
+            }
+        }
+
+        synchronized (this) {
+            Iterator<PeerConnections> it = peers.values().iterator();
+            while (it.hasNext()) {
+                PeerConnections conns = it.next();
+                synchronized (conns) {
+                    if (conns.users == 0 && conns.size() == 0) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes all the connections.
+     */
+    public void close() {
+        List<PeerConnections> all;
+        synchronized (this) {
+            closed = true;
+            all = new ArrayList<>(peers.values());
+            peers.clear();
+        }
+        for (PeerConnections conns : all) {
+            synchronized (conns) {
+                for (PeerConnection conn : conns.connections) {
+                    conn.close();
+                }
+                conns.connections.clear();
+                conns.notifyAll();
+            }
+        }
+    }
+
+    private synchronized boolean isLegacy(Node node) {
+        Long since = legacyPeers.get(peerId(node));
+        if (since == null) {
+            return false;
+        } else if (System.currentTimeMillis() - since > LEGACY_RETRY_INTERVAL) {
+            legacyPeers.remove(peerId(node)); // Check again, it may have been updated
+            return false;
+        } else {
+            return true;
+        }
+    }
+
+    private synchronized void markLegacy(Node node) {
+        legacyPeers.put(peerId(node), System.currentTimeMillis());
+    }
+
+    private static String peerId(Node node) {
+        return node.getAddress() + ":" + node.getPort();
+    }
+
+    /**
+     * Performs a single operation through a new connection (older peers).
+     * @param node The peer.
+     * @param msg The request.
+     * @param waitReply True to wait for a reply (READ).
+     * @return The reply, or null if not waited.
+     * @throws IOException
+     */
+    private static KadTCPMessage legacyRequest(Node node, KadTCPMessage msg, boolean waitReply) throws IOException {
+        try (Socket s = node.openConnection()) {
+            s.setSoTimeout((int) KademliaConfiguration.RESPONSE_TIMEOUT);
+
+            DataInputStream input = new DataInputStream(s.getInputStream());
+            DataOutputStream output = new DataOutputStream(s.getOutputStream());
+
+            // Receive IV
+            byte[] iv = new byte[16];
+            input.readFully(iv);
+            IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
+
+            output.write(msg.serializeAndEncrypt(ivParameterSpec));
+
+            if (!waitReply) {
+                return null;
+            }
+
+            KadTCPMessage reply = new KadTCPMessage();
+            reply.readFromEncryptedStream(input, ivParameterSpec);
+            return reply;
+        }
+    }
+
+    /**
+     * Connections to a peer.
+     */
+    private static class PeerConnections {
+        private final List<PeerConnection> connections = new ArrayList<>();
+        private int opening = 0;
+        private int users = 0; // Guarded by the pool
+
+        private void removeClosed() {
+            Iterator<PeerConnection> it = connections.iterator();
+            while (it.hasNext()) {
+                if (it.next().isClosed()) {
+                    it.remove();
+                }
+            }
+        }
+
+        private PeerConnection leastLoaded() {
+            PeerConnection best = null;
+            for (PeerConnection conn : connections) {
+                if (!conn.isClosed() && (best == null || conn.getPendingCount() < best.getPendingCount())) {
+                    best = conn;
+                }
+            }
+            return best;
+        }
+
+        private int size() {
+            return connections.size() + opening;
+        }
+    }
+}
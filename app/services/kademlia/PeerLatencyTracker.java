@@ -0,0 +1,137 @@
+package services.kademlia;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Observed latency of the block reads.
+ * Keeps an average (EWMA) per peer, to try the fastest replicas first, and the latencies
+ * of the last reads of all the peers, to know when a read is slower than usual and it is
+ * worth sending it to another replica too.
+ */
+public class PeerLatencyTracker {
+
+    private static final double ALPHA = 0.2;
+    private static final int MIN_SAMPLES = 16;
+
+    private final Cache<KadKey, Latency> peers;
+    private final long[] samples;
+    private final double percentile;
+    private final long defaultDelay;
+    private final long minDelay;
+    private final long maxDelay;
+
+    private int sampleCount;
+    private int sampleNext;
+
+    /**
+     * @param window Number of recent reads used for the percentile.
+     * @param percentile Percentile of the recent latencies that triggers a hedged read (0 - 1)
+     * @param defaultDelay Hedge delay until there are enough samples (ms)
+     * @param minDelay Min hedge delay (ms)
+     * @param maxDelay Max hedge delay (ms)
+     */
+    public PeerLatencyTracker(int window, double percentile, long defaultDelay, long minDelay, long maxDelay) {
+        this.peers = CacheBuilder.newBuilder()
+                .maximumSize(4096)
+                .expireAfterAccess(1, TimeUnit.HOURS)
+                .build();
+        this.samples = new long[Math.max(MIN_SAMPLES, window)];
+        this.percentile = Math.max(0, Math.min(1, percentile));
+        this.defaultDelay = defaultDelay;
+        this.minDelay = minDelay;
+        this.maxDelay = maxDelay;
+        this.sampleCount = 0;
+        this.sampleNext = 0;
+    }
+
+    /**
+     * Records a read that got a reply (the block, or not found).
+     * @param node The peer.
+     * @param millis The latency (ms)
+     */
+    public void recordSuccess(Node node, long millis) {
+        update(node, millis);
+        synchronized (samples) {
+            samples[sampleNext] = millis;
+            sampleNext = (sampleNext + 1) % samples.length;
+            sampleCount = Math.min(sampleCount + 1, samples.length);
+        }
+    }
+
+    /**
+     * Records a read that failed. The peer counts as slow as the max delay, so it goes to the end.
+     * @param node The peer.
+     * @param millis The time until the failure (ms)
+     */
+    public void recordFailure(Node node, long millis) {
+        update(node, Math.max(millis, maxDelay));
+    }
+
+    private void update(Node node, long millis) {
+        try {
+            Latency latency = peers.get(node.getIdentifier(), Latency::new);
+            synchronized (latency) {
+                latency.average = latency.samples == 0 ? millis : latency.average + ALPHA * (millis - latency.average);
+                latency.samples++;
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * @param node The peer.
+     * @return The average latency of the peer (ms), or -1 if unknown.
+     */
+    public double getAverage(Node node) {
+        Latency latency = peers.getIfPresent(node.getIdentifier());
+        if (latency == null) {
+            return -1;
+        }
+        synchronized (latency) {
+            return latency.average;
+        }
+    }
+
+    /**
+     * Sorts the replicas, fastest first. Unknown peers go first, to learn their latency;
+     * peers with the same latency keep a random order.
+     * @param nodes The replicas.
+     * @return The sorted replicas.
+     */
+    public List<Node> rank(List<Node> nodes) {
+        List<Node> ranked = new ArrayList<>(nodes);
+        Collections.shuffle(ranked);
+        ranked.sort(Comparator.comparingDouble(this::getAverage));
+        return ranked;
+    }
+
+    /**
+     * @return Time to wait for a replica before asking the next one (ms)
+     */
+    public long getHedgeDelay() {
+        long[] sorted;
+        synchronized (samples) {
+            if (sampleCount < MIN_SAMPLES) {
+                return defaultDelay;
+            }
+            sorted = Arrays.copyOf(samples, sampleCount);
+        }
+        Arrays.sort(sorted);
+        long value = sorted[(int) Math.min(sorted.length - 1, Math.floor(percentile * sorted.length))];
+        return Math.max(minDelay, Math.min(maxDelay, value));
+    }
+
+    private static class Latency {
+        private double average;
+        private long samples;
+    }
+}
@@ -1,11 +1,18 @@
 package services.kademlia;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.TreeSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
 
 /**
  * Kademlia routing table.
+ * Changes are made under the table lock, and publish a new snapshot of the bucket contacts
+ * (copy on write), so the lookups read it without locking.
  */
 public class RoutingTable {
     private static final int TABLE_LENGTH = 256;
@@ -13,12 +20,23 @@ public class RoutingTable {
     private final Node localNode;
     private final KBucket[] buckets;
 
+    private final AtomicLongArray epochs;
+
+    private volatile Node[][] snapshot;
+
+    private Consumer<Node> pinger;
+    private final Set<KadKey> pinging;
+
     public RoutingTable(Node localNode) {
         this.localNode = localNode;
         buckets = new KBucket[TABLE_LENGTH + 1];
+        epochs = new AtomicLongArray(TABLE_LENGTH + 1);
+        snapshot = new Node[TABLE_LENGTH + 1][];
+        pinging = new HashSet<>();
 
         for (int i = 0; i < buckets.length; i++) {
             buckets[i] = new KBucket(i); // Create buckets
+            snapshot[i] = new Node[0];
         }
 
         this.insert(localNode, System.currentTimeMillis());
@@ -28,17 +46,71 @@ public class RoutingTable {
      * Inserts a new contact
      * @param n The new contact
      */
-    public synchronized void insert(Node n, long timestamp) {
+    public void insert(Node n, long timestamp) {
         this.insert(new Contact(n, timestamp));
     }
 
     /**
      * Inserts a new contact
+     * If its bucket is full, the least recently seen contact is pinged. If it does not reply
+     * (see setUnresponsiveContact) it is replaced by a contact of the replacement cache.
      * @param c The new contact
      */
-    public synchronized void insert(Contact c) {
+    public void insert(Contact c) {
         //System.out.println("Inserting contact: " + c.toString());
-        this.buckets[this.getBucketId(c.getIdentifier())].insert(c);
+        Node toPing = null;
+        synchronized (this) {
+            int bucketId = this.getBucketId(c.getIdentifier());
+            KBucket bucket = this.buckets[bucketId];
+            if (bucket.insert(c)) {
+                this.bucketChanged(bucketId);
+            } else if (this.pinger != null && !bucket.containsContact(c)) {
+                Contact oldest = bucket.getLeastRecentlySeen();
+                if (oldest != null && !oldest.equals(this.localNode) && this.pinging.add(oldest.getIdentifier())) {
+                    toPing = oldest;
+                }
+            }
+        }
+        if (toPing != null) {
+            this.pinger.accept(toPing);
+        }
+    }
+
+    /**
+     * Sets the function that pings the least recently seen contacts of the full buckets.
+     * It must not block, and call pingFinished when the ping ends.
+     * @param pinger The ping function.
+     */
+    public synchronized void setPinger(Consumer<Node> pinger) {
+        this.pinger = pinger;
+    }
+
+    /**
+     * Ends a ping started by the routing table. The contact is inserted again if it replied,
+     * or reported with setUnresponsiveContact if it did not.
+     * @param n The pinged contact.
+     */
+    public synchronized void pingFinished(Node n) {
+        this.pinging.remove(n.getIdentifier());
+    }
+
+    /**
+     * Publishes the contacts of a changed bucket. Called with the table lock.
+     * @param bucketId The bucket id.
+     */
+    private void bucketChanged(int bucketId) {
+        Node[][] next = this.snapshot.clone();
+        next[bucketId] = this.buckets[bucketId].getContacts().toArray(new Node[0]);
+        this.snapshot = next;
+        this.epochs.incrementAndGet(bucketId);
+    }
+
+    /**
+     * @param bucketId The bucket id.
+     * @return A counter of the changes of contacts of the bucket (added or removed, not just seen again).
+     */
+    public long getBucketEpoch(int bucketId) {
+        return this.epochs.get(bucketId);
     }
 
     /**
@@ -56,16 +128,13 @@ public class RoutingTable {
     /**
      * @return List A List of all Nodes in this routing table
      */
-    public synchronized final List<Node> getAllNodes()
+    public final List<Node> getAllNodes()
     {
         List<Node> nodes = new ArrayList<>();
 
-        for (KBucket b : this.buckets)
+        for (Node[] bucket : this.snapshot)
         {
-            for (Contact c : b.getContacts())
-            {
-                nodes.add(c);
-            }
+            Collections.addAll(nodes, bucket);
         }
 
         return nodes;
@@ -73,28 +142,47 @@ public class RoutingTable {
 
     /**
      * Find the closest set of contacts to a given NodeId
+     * The buckets are visited from the closest to the target, only the visited buckets are sorted:
+     * - The contacts of the target bucket share more leading bits with the target than any other.
+     * - Then the contacts of the lower buckets (closer to the local node), all in the same distance range.
+     * - Then the higher buckets, in order, each one farther than the previous one.
      *
      * @param target           The NodeId to find contacts close to
      * @param numNodesRequired The number of contacts to find
      * @return List A List of contacts closest to target
      */
-    public synchronized final List<Node> findClosest(KadKey target, int numNodesRequired) {
-        TreeSet<Node> sortedSet = new TreeSet<>(new DistanceComparator(target));
-        sortedSet.addAll(this.getAllNodes());
-
+    public final List<Node> findClosest(KadKey target, int numNodesRequired) {
+        Node[][] table = this.snapshot;
+        DistanceComparator comparator = new DistanceComparator(target);
         List<Node> closest = new ArrayList<>(numNodesRequired);
 
-        /* Now we have the sorted set, lets get the top numRequired */
-        int count = 0;
-        for (Node n : sortedSet) {
-            closest.add(n);
-            if (++count == numNodesRequired) {
-                break;
+        int targetBucket = this.getBucketId(target);
+        addClosest(closest, numNodesRequired, comparator, new ArrayList<>(Arrays.asList(table[targetBucket])));
+
+        if (closest.size() < numNodesRequired) {
+            List<Node> lower = new ArrayList<>();
+            for (int i = 0; i < targetBucket; i++) {
+                Collections.addAll(lower, table[i]);
             }
+            addClosest(closest, numNodesRequired, comparator, lower);
         }
+
+        for (int i = targetBucket + 1; i < table.length && closest.size() < numNodesRequired; i++) {
+            addClosest(closest, numNodesRequired, comparator, new ArrayList<>(Arrays.asList(table[i])));
+        }
+
         return closest;
     }
 
+    private static void addClosest(List<Node> closest, int numNodesRequired, DistanceComparator comparator, List<Node> group) {
+        if (group.isEmpty()) {
+            return;
+        }
+        group.sort(comparator);
+        int count = Math.min(group.size(), numNodesRequired - closest.size());
+        closest.addAll(group.subList(0, count));
+    }
+
     /**
      * @return List A List of all Nodes in this routing table
      */
@@ -146,7 +234,9 @@ public class RoutingTable {
         int bucketId = this.getBucketId(n.getIdentifier());
 
         /* Remove the contact from the bucket */
-        this.buckets[bucketId].removeContact(new Contact(n));
+        if (this.buckets[bucketId].removeContact(new Contact(n))) {
+            this.bucketChanged(bucketId);
+        }
     }
 
     @Override
@@ -0,0 +1,209 @@
+package services.kademlia;
+
+import com.google.common.util.concurrent.RateLimiter;
+import services.StorageService;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a task for every stored key (republish, purge), with bounded parallelism and a rate limit.
+ * Keys are read in pages ordered by key, and the last completed page is saved,
+ * so a pass interrupted by a restart continues where it stopped.
+ */
+public class StoredKeysWalker {
+
+    private static final int PAGE_SIZE = 500;
+
+    /**
+     * Task for a key.
+     */
+    public interface KeyTask {
+        void run(KadKey key) throws Exception;
+    }
+
+    private final String name;
+    private final StorageService storage;
+    private final Path cursorFile;
+    private final int parallelism;
+    private final RateLimiter rateLimiter;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong processed;
+    private final AtomicLong failed;
+    private volatile long total;
+    private volatile long startedAt;
+    private volatile KadKey lastKey;
+    private volatile boolean running;
+
+    /**
+     * @param name Name of the pass, for the threads and the cursor file.
+     * @param storage The storage service.
+     * @param cursorsPath Directory of the cursor files.
+     * @param parallelism Max keys processed at the same time.
+     * @param rate Max keys per second, 0 for unlimited.
+     */
+    public StoredKeysWalker(String name, StorageService storage, Path cursorsPath, int parallelism, double rate) {
+        this.name = name;
+        this.storage = storage;
+        this.cursorFile = cursorsPath.resolve(name + ".cursor");
+        this.parallelism = Math.max(1, parallelism);
+        this.rateLimiter = rate > 0 ? RateLimiter.create(rate) : null;
+        this.executor = new ThreadPoolExecutor(this.parallelism, this.parallelism, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "kad-" + name);
+            t.setDaemon(true);
+            return t;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+        this.processed = new AtomicLong(0);
+        this.failed = new AtomicLong(0);
+        this.total = 0;
+        this.startedAt = 0;
+        this.lastKey = null;
+        this.running = false;
+    }
+
+    /**
+     * Runs a full pass, or continues the interrupted one.
+     * @param task The task for every key. Failures are logged, the pass goes on.
+     * @throws InterruptedException If interrupted (the pass is continued next time).
+     */
+    public void run(KeyTask task) throws InterruptedException {
+        this.running = true;
+        this.startedAt = System.currentTimeMillis();
+        this.processed.set(0);
+        this.failed.set(0);
+        this.total = storage.countStoredBlocks();
+
+        Semaphore slots = new Semaphore(parallelism);
+        KadKey cursor = loadCursor();
+        this.lastKey = cursor;
+
+        try {
+            while (true) {
+                List<KadKey> page = storage.listStoredKeys(cursor, PAGE_SIZE);
+                if (page.isEmpty()) {
+                    break;
+                }
+
+                CountDownLatch done = new CountDownLatch(page.size());
+                for (KadKey key : page) {
+                    if (rateLimiter != null) {
+                        rateLimiter.acquire();
+                    }
+                    slots.acquire();
+                    executor.execute(() -> {
+                        try {
+                            task.run(key);
+                        } catch (Exception ex) {
+                            failed.incrementAndGet();
+                            ex.printStackTrace();
+                        } finally {
+                            processed.incrementAndGet();
+                            slots.release();
+                            done.countDown();
+                        }
+                    });
+                }
+
+                // The whole page is done, it is not repeated after a restart
+                done.await();
+                cursor = page.get(page.size() - 1);
+                this.lastKey = cursor;
+                saveCursor(cursor);
+            }
+
+            deleteCursor(); // Pass completed
+        } finally {
+            this.running = false;
+        }
+    }
+
+    private KadKey loadCursor() {
+        try {
+            if (Files.exists(cursorFile)) {
+                return KadKey.fromHex(new String(Files.readAllBytes(cursorFile), StandardCharsets.UTF_8).trim());
+            }
+        } catch (Exception ex) {
+            System.out.println("[WARNING] Invalid " + name + " cursor, starting from the beginning / Reason: " + ex.getMessage());
+        }
+        return null;
+    }
+
+    private void saveCursor(KadKey key) {
+        Path tmp = cursorFile.resolveSibling(cursorFile.getFileName() + ".tmp");
+        try {
+            Files.write(tmp, key.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, cursorFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private void deleteCursor() {
+        try {
+            Files.deleteIfExists(cursorFile);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops the threads. An interrupted pass is continued after the restart.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return True if a pass is running.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return The keys processed in the current (or last) pass.
+     */
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    /**
+     * @return The keys whose task failed in the current (or last) pass.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return The number of stored keys when the pass started.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return The start time of the current (or last) pass.
+     */
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * @return The last key of the last completed page, null at the beginning of a pass.
+     */
+    public KadKey getLastKey() {
+        return lastKey;
+    }
+}
@@ -0,0 +1,174 @@
+package services.kademlia;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed wheel timer for request timeouts.
+ * Scheduling and cancelling are O(1) and lock-free, a single thread advances the wheel every tick
+ * and hands the expired tasks to an executor. Timeouts fire up to a tick late.
+ */
+public class TimeoutWheel {
+
+    private final long tickDuration;
+    private final List<List<Timeout>> wheel;
+    private final Queue<Timeout> added;
+    private final Executor executor;
+    private final AtomicInteger pending;
+
+    private final Thread thread;
+    private volatile boolean stopped;
+
+    private long tick;
+
+    /**
+     * Creates the timer and starts its thread.
+     * @param tickDuration Duration of a tick (ms), the precision of the timeouts.
+     * @param wheelSize Number of slots of the wheel.
+     * @param executor Runs the expired tasks.
+     */
+    public TimeoutWheel(long tickDuration, int wheelSize, Executor executor) {
+        this.tickDuration = tickDuration;
+        this.wheel = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            this.wheel.add(new ArrayList<>());
+        }
+        this.added = new ConcurrentLinkedQueue<>();
+        this.executor = executor;
+        this.pending = new AtomicInteger(0);
+        this.stopped = false;
+        this.tick = 0;
+
+        this.thread = new Thread(this::loop, "kad-timeouts");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Schedules a task.
+     * @param task The task.
+     * @param delay The delay (ms)
+     * @return The timeout, for cancelling it.
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        Timeout timeout = new Timeout(task, System.currentTimeMillis() + delay);
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    private void loop() {
+        long start = System.currentTimeMillis();
+        while (!stopped) {
+            long next = start + (tick + 1) * tickDuration;
+            long sleep = next - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+
+            // New timeouts, placed in the slot of their deadline
+            Timeout t;
+            while ((t = added.poll()) != null) {
+                if (t.isCancelled()) {
+                    continue;
+                }
+                long ticks = Math.max(tick + 1, (t.deadline - start + tickDuration - 1) / tickDuration);
+                t.rounds = (ticks - tick - 1) / wheel.size();
+                wheel.get((int) (ticks % wheel.size())).add(t);
+            }
+
+            tick++;
+            expire(wheel.get((int) (tick % wheel.size())));
+        }
+    }
+
+    private void expire(List<Timeout> slot) {
+        Iterator<Timeout> it = slot.iterator();
+        while (it.hasNext()) {
+            Timeout t = it.next();
+            if (t.isCancelled()) {
+                it.remove();
+            } else if (t.rounds > 0) {
+                t.rounds--;
+            } else {
+                it.remove();
+                if (t.expire()) {
+                    try {
+                        executor.execute(t.task);
+                    } catch (RejectedExecutionException ex) {
+                        // Shutting down
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The number of scheduled timeouts, not expired nor cancelled.
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Stops the timer. The scheduled timeouts never fire.
+     */
+    public void stop() {
+        stopped = true;
+        thread.interrupt();
+    }
+
+    /**
+     * A scheduled timeout.
+     */
+    public class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state;
+        private long rounds;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+            this.state = new AtomicInteger(WAITING);
+        }
+
+        /**
+         * Cancels the timeout.
+         * @return False if it already expired.
+         */
+        public boolean cancel() {
+            if (state.compareAndSet(WAITING, CANCELLED)) {
+                pending.decrementAndGet();
+                return true;
+            }
+            return state.get() == CANCELLED;
+        }
+
+        private boolean expire() {
+            if (state.compareAndSet(WAITING, EXPIRED)) {
+                pending.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        private boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+    }
+}
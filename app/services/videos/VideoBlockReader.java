@@ -0,0 +1,181 @@
+package services.videos;
+
+import services.DHTService;
+import services.kademlia.KadKey;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Random access reader for a file stored in fixed size blocks across the DHT.
+ * Maps byte offsets to block indexes, so only the blocks covering the requested bytes are fetched.
+ */
+public class VideoBlockReader implements Closeable {
+
+    private final DHTService dht;
+    private final int fixedBlockSize;
+    private final List<KadKey> fileBlocks;
+    private final long length;
+
+    private final int readAhead;
+    private final Map<Integer, Future<ByteBuffer>> prefetchedBlocks;
+    private boolean closed;
+
+    /**
+     * Creates the reader.
+     * @param dht The DHT service.
+     * @param fixedBlockSize The size of every block, except the last one.
+     * @param fileBlocks The file blocks.
+     * @param length The file length, as stored in the index. Negative if unknown (indexes stored by older versions).
+     * @param readAhead Number of blocks to fetch in background after the one being read.
+     * @throws IOException If the length is unknown and the last block cannot be fetched.
+     */
+    public VideoBlockReader(DHTService dht, int fixedBlockSize, List<KadKey> fileBlocks, long length, int readAhead) throws IOException {
+        this.dht = dht;
+        this.fixedBlockSize = fixedBlockSize;
+        this.fileBlocks = fileBlocks;
+        this.readAhead = Math.max(0, readAhead);
+        this.prefetchedBlocks = new TreeMap<>();
+        this.closed = false;
+        this.length = length >= 0 ? length : findLength();
+    }
+
+    /**
+     * @return The file length in bytes.
+     */
+    public long length() {
+        return this.length;
+    }
+
+    /**
+     * @return The number of blocks of the file.
+     */
+    public int getBlockCount() {
+        return this.fileBlocks.size();
+    }
+
+    /**
+     * @return The size of every block, except the last one.
+     */
+    public int getFixedBlockSize() {
+        return this.fixedBlockSize;
+    }
+
+    /**
+     * Finds the block containing a byte.
+     * @param offset The byte offset in the file.
+     * @return The block index.
+     */
+    public int getBlockIndex(long offset) {
+        return (int) (offset / this.fixedBlockSize);
+    }
+
+    /**
+     * @param index The block index.
+     * @return The offset in the file of the first byte of the block.
+     */
+    public long getBlockOffset(int index) {
+        return (long) index * this.fixedBlockSize;
+    }
+
+    /**
+     * Gets a block, and starts fetching the next ones in background.
+     * Background fetches outside the new read-ahead window (seeks) are cancelled.
+     * @param index The block index.
+     * @return The block content. Read-only if it comes from the memory cache.
+     * @throws IOException
+     */
+    public synchronized ByteBuffer getBlock(int index) throws IOException {
+        if (index < 0 || index >= fileBlocks.size()) {
+            throw new IOException("Block index out of bounds: " + index);
+        }
+
+        Future<ByteBuffer> pending = this.prefetchedBlocks.remove(index);
+
+        this.cancelPrefetchOutsideWindow(index);
+        this.prefetch(index);
+
+        try {
+            if (pending != null) {
+                return pending.get();
+            } else {
+                return dht.readBlockBufferFromDHT(fileBlocks.get(index));
+            }
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause().getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching block.");
+        } catch (Exception ex) {
+            throw new IOException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Starts fetching the blocks after the current one in background, up to the read-ahead window.
+     * @param current The block being read.
+     */
+    private void prefetch(int current) {
+        if (closed) {
+            return;
+        }
+        int last = Math.min(current + this.readAhead, fileBlocks.size() - 1);
+        for (int i = current + 1; i <= last; i++) {
+            if (!this.prefetchedBlocks.containsKey(i)) {
+                try {
+                    this.prefetchedBlocks.put(i, dht.readBlockFromDHTAsync(fileBlocks.get(i)));
+                } catch (RejectedExecutionException ex) {
+                    return; // Node saturated, the remaining blocks will be fetched on demand
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancels the background fetches that are not in the read-ahead window anymore.
+     * @param current The block being read.
+     */
+    private void cancelPrefetchOutsideWindow(int current) {
+        Iterator<Map.Entry<Integer, Future<ByteBuffer>>> it = this.prefetchedBlocks.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Future<ByteBuffer>> e = it.next();
+            if (e.getKey() <= current || e.getKey() > current + this.readAhead) {
+                e.getValue().cancel(true);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Cancels the pending background fetches.
+     */
+    @Override
+    public synchronized void close() {
+        this.closed = true;
+        for (Future<ByteBuffer> f : this.prefetchedBlocks.values()) {
+            f.cancel(true);
+        }
+        this.prefetchedBlocks.clear();
+    }
+
+    private long findLength() throws IOException {
+        if (fileBlocks.isEmpty()) {
+            return 0;
+        } else {
+            KadKey last = fileBlocks.get(fileBlocks.size() - 1);
+            try {
+                return ((long) (fileBlocks.size() - 1) * fixedBlockSize) + dht.readBlockBufferFromDHT(last).remaining();
+            } catch (Exception ex) {
+                throw new IOException(ex.getMessage());
+            }
+        }
+    }
+}
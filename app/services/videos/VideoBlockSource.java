@@ -0,0 +1,85 @@
+package services.videos;
+
+import akka.NotUsed;
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+/**
+ * Streams a byte range of a file stored in the DHT, emitting one element per block.
+ * Heap blocks are wrapped without copying them, so no work is done per byte. Blocks from the
+ * off-heap memory cache are copied once, only the slice of the range.
+ */
+public class VideoBlockSource {
+
+    private final VideoBlockReader reader;
+    private final long first;
+    private final long last;
+    private int nextBlock;
+
+    private VideoBlockSource(VideoBlockReader reader, long first, long last) {
+        this.reader = reader;
+        this.first = first;
+        this.last = last;
+        this.nextBlock = reader.getBlockIndex(first);
+    }
+
+    /**
+     * Creates a source for the entire file.
+     * @param reader The file reader. It is closed when the stream completes or is cancelled.
+     * @return The source.
+     */
+    public static Source<ByteString, NotUsed> of(VideoBlockReader reader) {
+        return of(reader, 0, reader.length() - 1);
+    }
+
+    /**
+     * Creates a source for a byte range of the file.
+     * @param reader The file reader. It is closed when the stream completes or is cancelled.
+     * @param first The first byte of the range.
+     * @param last The last byte of the range (inclusive).
+     * @return The source.
+     */
+    public static Source<ByteString, NotUsed> of(VideoBlockReader reader, long first, long last) {
+        // Blocking reads, Akka runs them on its IO dispatcher
+        return Source.unfoldResource(
+                () -> new VideoBlockSource(reader, first, last),
+                VideoBlockSource::next,
+                VideoBlockSource::close);
+    }
+
+    /**
+     * @return The next slice of the range, or empty when finished.
+     * @throws IOException
+     */
+    private Optional<ByteString> next() throws IOException {
+        long blockOffset = reader.getBlockOffset(nextBlock);
+        if (last < first || blockOffset > last || nextBlock >= reader.getBlockCount()) {
+            return Optional.empty();
+        }
+
+        ByteBuffer block = reader.getBlock(nextBlock);
+        nextBlock++;
+
+        int start = (int) (Math.max(first, blockOffset) - blockOffset);
+        int end = (int) Math.min(block.remaining(), last - blockOffset + 1);
+        if (start >= end) {
+            throw new IOException("Block " + (nextBlock - 1) + " is shorter than expected.");
+        }
+
+        if (block.hasArray()) {
+            return Optional.of(ByteString.fromArrayUnsafe(block.array(), block.arrayOffset() + block.position() + start, end - start));
+        }
+        ByteBuffer slice = block.duplicate();
+        slice.limit(block.position() + end);
+        slice.position(block.position() + start);
+        return Optional.of(ByteString.fromByteBuffer(slice));
+    }
+
+    private void close() {
+        reader.close();
+    }
+}
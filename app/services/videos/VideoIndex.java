@@ -40,6 +40,13 @@ public class VideoIndex {
             size += s.length;
             serializedRes.add(s);
         }
+        // File sizes go after the resolutions, so older versions can still read the index
+        List<byte[]> serializedSizes = new ArrayList<>();
+        for (VideoResolutionIndex res : resolutions) {
+            byte[] s = res.serializeSizes();
+            size += s.length;
+            serializedSizes.add(s);
+        }
         ByteBuffer buf = ByteBuffer.allocate(size);
         buf.putInt(fixedBlockSize);
         buf.put(schemaBlock.getBytes());
@@ -48,6 +55,9 @@ public class VideoIndex {
         for (byte[] b : serializedRes) {
             buf.put(b);
         }
+        for (byte[] b : serializedSizes) {
+            buf.put(b);
+        }
         return buf.array();
     }
 
@@ -90,6 +100,17 @@ public class VideoIndex {
             vi.read(din);
             this.resolutions.add(vi);
         }
+
+        // File sizes, missing in indexes stored by older versions
+        try {
+            for (VideoResolutionIndex vi : this.resolutions) {
+                vi.readSizes(din);
+            }
+        } catch (IOException ex) {
+            for (VideoResolutionIndex vi : this.resolutions) {
+                vi.clearSizes();
+            }
+        }
     }
 
     public VideoResolutionIndex findResolution (String name) {
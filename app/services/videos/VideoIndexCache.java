@@ -0,0 +1,82 @@
+package services.videos;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import services.kademlia.KadKey;
+
+/**
+ * In-memory cache of decoded video indexes and parsed schemas.
+ * Index and schema blocks are content addressed, so cached entries never become stale.
+ */
+public class VideoIndexCache {
+
+    private final Cache<KadKey, VideoIndex> indexes;
+    private final Cache<KadKey, JsonNode> schemas;
+
+    /**
+     * @param maxEntries Max number of indexes (and schemas) to keep, least recently used are evicted.
+     */
+    public VideoIndexCache(long maxEntries) {
+        this.indexes = CacheBuilder.newBuilder().maximumSize(maxEntries).recordStats().build();
+        this.schemas = CacheBuilder.newBuilder().maximumSize(maxEntries).recordStats().build();
+    }
+
+    /**
+     * @param key The index block kad_key.
+     * @return The decoded index, or null if not cached.
+     */
+    public VideoIndex getIndex(KadKey key) {
+        return indexes.getIfPresent(key);
+    }
+
+    public void putIndex(KadKey key, VideoIndex index) {
+        indexes.put(key, index);
+    }
+
+    /**
+     * @param key The schema block kad_key.
+     * @return The parsed schema, or null if not cached.
+     */
+    public JsonNode getSchema(KadKey key) {
+        return schemas.getIfPresent(key);
+    }
+
+    public void putSchema(KadKey key, JsonNode schema) {
+        schemas.put(key, schema);
+    }
+
+    /**
+     * Removes a video from the cache.
+     * @param key The index block kad_key.
+     */
+    public void invalidate(KadKey key) {
+        VideoIndex index = indexes.getIfPresent(key);
+        if (index != null) {
+            schemas.invalidate(index.getSchemaBlock());
+        }
+        indexes.invalidate(key);
+    }
+
+    /**
+     * @return Hits, misses and evictions of the index cache.
+     */
+    public CacheStats getIndexStats() {
+        return indexes.stats();
+    }
+
+    /**
+     * @return Hits, misses and evictions of the schema cache.
+     */
+    public CacheStats getSchemaStats() {
+        return schemas.stats();
+    }
+
+    /**
+     * @return The number of cached indexes.
+     */
+    public long size() {
+        return indexes.size();
+    }
+}
@@ -19,11 +19,16 @@ public class VideoResolutionIndex {
     private final List<KadKey> webmBlocks;
     private final Map<String, List<KadKey>> hlsBlocks;
 
+    private long mp4Size;
+    private final Map<String, Long> hlsSizes;
+
     public VideoResolutionIndex(String resolutionName) {
         this.resolutionName = resolutionName;
         this.mp4Blocks = new ArrayList<>();
         this.webmBlocks = new ArrayList<>();
         this.hlsBlocks = new TreeMap<>();
+        this.mp4Size = -1;
+        this.hlsSizes = new TreeMap<>();
     }
 
     /**
@@ -132,6 +137,63 @@ public class VideoResolutionIndex {
         }
     }
 
+    /**
+     * @return The file sizes serialized as byte array.
+     */
+    public byte[] serializeSizes() {
+        int size = 8 + 4;
+        for (String key : hlsSizes.keySet()) {
+            size += 4;
+            size += key.getBytes().length;
+            size += 8;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+
+        buf.putLong(mp4Size);
+
+        buf.putInt(hlsSizes.size());
+        for (String key : hlsSizes.keySet()) {
+            buf.putInt(key.getBytes().length);
+            buf.put(key.getBytes());
+            buf.putLong(hlsSizes.get(key));
+        }
+
+        return buf.array();
+    }
+
+    /**
+     * Reads the file sizes from input stream.
+     * @param din Input stream.
+     * @throws IOException
+     */
+    public void readSizes(DataInputStream din) throws IOException {
+        this.mp4Size = din.readLong();
+
+        int hlsFileCount = din.readInt();
+        if (hlsFileCount < 0 || hlsFileCount > hlsBlocks.size()) {
+            throw new IOException("Invalid HLS file sizes list.");
+        }
+
+        for (int i = 0; i < hlsFileCount; i++) {
+            int fileNameSize = din.readInt();
+            if (fileNameSize < 0 || fileNameSize > 255) {
+                throw new IOException("Invalid HLS file name");
+            }
+            byte[] bytesFile = new byte[fileNameSize];
+            din.readFully(bytesFile);
+            hlsSizes.put(new String(bytesFile), din.readLong());
+        }
+    }
+
+    /**
+     * Forgets the file sizes (unknown).
+     */
+    public void clearSizes() {
+        this.mp4Size = -1;
+        this.hlsSizes.clear();
+    }
+
     public String getResolutionName() {
         return resolutionName;
     }
@@ -151,4 +213,28 @@ public class VideoResolutionIndex {
     public Map<String, List<KadKey>> getHlsBlocks() {
         return hlsBlocks;
     }
+
+    /**
+     * @return The MP4 file size in bytes, or -1 if unknown.
+     */
+    public long getMp4Size() {
+        return mp4Size;
+    }
+
+    public void setMp4Size(long mp4Size) {
+        this.mp4Size = mp4Size;
+    }
+
+    /**
+     * @param fileName The HLS file name.
+     * @return The HLS file size in bytes, or -1 if unknown.
+     */
+    public long getHlsSize(String fileName) {
+        Long size = hlsSizes.get(fileName);
+        return size == null ? -1 : size;
+    }
+
+    public Map<String, Long> getHlsSizes() {
+        return hlsSizes;
+    }
 }
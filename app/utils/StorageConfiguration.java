@@ -33,6 +33,11 @@ public class StorageConfiguration {
     private static VideoSpecification defaultSpec = null;
     public static int FRAGMENT_SIZE = 3;
 
+    public static int STREAM_READ_AHEAD_BLOCKS = 4;
+    public static int STREAM_READ_AHEAD_THREADS = 16;
+
+    public static int VIDEO_INDEX_CACHE_SIZE = 1024;
+
     public static synchronized void load() {
         if (loaded) {
             return;
@@ -51,6 +56,18 @@ public class StorageConfiguration {
             MP4_SPEED = config.getString("storage.mp4.preset");
         }
 
+        if (config.hasPath("storage.stream.readahead.blocks")) {
+            STREAM_READ_AHEAD_BLOCKS = config.getInt("storage.stream.readahead.blocks");
+        }
+
+        if (config.hasPath("storage.stream.readahead.threads")) {
+            STREAM_READ_AHEAD_THREADS = config.getInt("storage.stream.readahead.threads");
+        }
+
+        if (config.hasPath("storage.cache.index.size")) {
+            VIDEO_INDEX_CACHE_SIZE = config.getInt("storage.cache.index.size");
+        }
+
         STORAGE_PATH.toFile().mkdirs();
 
         UPLOAD_TEMP_PATH = STORAGE_PATH.resolve("temp");
@@ -50,4 +50,12 @@ public class StoragePaths {
     public static Path getCacheStoragePath() {
         return getPath("cache");
     }
+
+    public static Path getIncomingChunksPath() {
+        return getPath("chunks_incoming");
+    }
+
+    public static Path getCursorsPath() {
+        return getPath("cursors");
+    }
 }
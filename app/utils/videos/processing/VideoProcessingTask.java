@@ -16,6 +16,7 @@ import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import play.libs.Json;
 import services.VideoProcessingService;
+import services.kademlia.BlockUploader;
 import services.kademlia.KadKey;
 import services.videos.VideoIndex;
 import services.videos.VideoResolutionIndex;
@@ -293,26 +294,53 @@ public class VideoProcessingTask extends Thread {
 
         task_name = "store";
         task_start = System.currentTimeMillis();
+        task_progress = 0;
 
-        long totalSizeToStore = 0;
+        long totalSizeToStore = video.getSchemaFile().toFile().length() + video.getPreview().toFile().length();
         for (VideoSpecification vp : resolutions) {
-            totalSizeToStore += video.getVideoMP4(vp).toFile().length() + video.getVideoWebM(vp).toFile().length();
+            totalSizeToStore += video.getVideoMP4(vp).toFile().length();
+            File[] hlsFiles = video.getPathHLS(vp).toFile().listFiles();
+            for (File file : hlsFiles) {
+                totalSizeToStore += file.length();
+            }
         }
-        long totalSizeStored = 0;
+        final long totalSize = Math.max(1, totalSizeToStore);
 
 
-        // Store the entire video in DHT, divide by chunks each resolution
+        // Store the entire video in DHT, divide by chunks each resolution.
+        // The blocks are stored in the background, the keys are known before they are stored
 
         long videoPart = 1;
 
         VideoIndex index = new VideoIndex();
 
+        BlockUploader uploader = this.service.dht.createBlockUploader(videoKey, stored -> setTaskProgress((double) stored / totalSize));
+        try {
+            storeVideoBlocks(resolutions, index, uploader, videoPart);
+            uploader.await();
+        } catch (Exception ex) {
+            uploader.cancel();
+            throw ex;
+        }
+        setTaskProgress(1);
+
+        // Finally, store index, once all the blocks are stored
+        KadKey videoIndexKey = this.service.dht.storeVideoBlock(videoKey, index.serialize(), 0);
+        video.setIndexChunk(videoIndexKey.toString());
+        video.markReady();
+        video.deleteAllFiles();
+
+        System.out.println("Done! / Stored in DHT / Key: " + video.getIndexChunk());
+        this.service.finishProcessVideo(video);
+    }
+
+    private void storeVideoBlocks(List<VideoSpecification> resolutions, VideoIndex index, BlockUploader uploader, long videoPart) throws Exception {
         // Store schema
-        index.setSchemaBlock(this.service.dht.storeVideoBlock(videoKey, Files.readAllBytes(video.getSchemaFile()), videoPart++));
+        index.setSchemaBlock(uploader.submit(Files.readAllBytes(video.getSchemaFile()), videoPart++));
 
         //Store preview, if exists
         if (video.getPreview().toFile().exists()) {
-            index.setPreviewBlock(this.service.dht.storeVideoBlock(videoKey, Files.readAllBytes(video.getPreview()), videoPart++));
+            index.setPreviewBlock(uploader.submit(Files.readAllBytes(video.getPreview()), videoPart++));
         }
 
         // Store resolutions
@@ -323,15 +351,18 @@ public class VideoProcessingTask extends Thread {
             DataInputStream din;
             int bytesRead = 0;
 
+            long fileSize = 0;
+
             // Store MP4
             din = new DataInputStream(new FileInputStream(video.getVideoMP4(vp).toFile()));
 
             do {
-                bytesRead = din.read(buffer);
+                // Every block but the last one must be full, readers map offsets to blocks
+                bytesRead = IOUtils.read(din, buffer);
                 if (bytesRead > 0) {
                     trueData = Arrays.copyOfRange(buffer, 0, bytesRead);
-                    vri.getMp4Blocks().add(this.service.dht.storeVideoBlock(videoKey, trueData, videoPart++));
-                    totalSizeStored += bytesRead;
+                    vri.getMp4Blocks().add(uploader.submit(trueData, videoPart++));
+                    fileSize += bytesRead;
                 }
 
                 if (this.interrupted) {
@@ -339,6 +370,7 @@ public class VideoProcessingTask extends Thread {
                 }
             } while (bytesRead > 0);
             din.close();
+            vri.setMp4Size(fileSize);
 
             // Store HLS
             File[] hlsFiles = video.getPathHLS(vp).toFile().listFiles();
@@ -346,14 +378,16 @@ public class VideoProcessingTask extends Thread {
                 String fileName = file.getName();
                 List<KadKey> fileKeys = new ArrayList<>();
 
+                fileSize = 0;
+
                 din = new DataInputStream(new FileInputStream(file));
 
                 do {
-                    bytesRead = din.read(buffer);
+                    bytesRead = IOUtils.read(din, buffer);
                     if (bytesRead > 0) {
                         trueData = Arrays.copyOfRange(buffer, 0, bytesRead);
-                        fileKeys.add(this.service.dht.storeVideoBlock(videoKey, trueData, videoPart++));
-                        totalSizeStored += bytesRead;
+                        fileKeys.add(uploader.submit(trueData, videoPart++));
+                        fileSize += bytesRead;
                     }
 
                     if (this.interrupted) {
@@ -363,21 +397,17 @@ public class VideoProcessingTask extends Thread {
                 din.close();
 
                 vri.getHlsBlocks().put(fileName, fileKeys);
+                vri.getHlsSizes().put(fileName, fileSize);
             }
 
 
             // Save into index
             index.getResolutions().add(vri);
         }
+    }
 
-        // Finally, store index
-        KadKey videoIndexKey = this.service.dht.storeVideoBlock(videoKey, index.serialize(), 0);
-        video.setIndexChunk(videoIndexKey.toString());
-        video.markReady();
-        video.deleteAllFiles();
-
-        System.out.println("Done! / Stored in DHT / Key: " + video.getIndexChunk());
-        this.service.finishProcessVideo(video);
+    private synchronized void setTaskProgress(double progress) {
+        this.task_progress = Math.min(1, progress);
     }
 
     private String getBase64Hash(byte[] data) throws NoSuchAlgorithmException {
@@ -0,0 +1,77 @@
+package controllers;
+
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Checks the parsing of the Range header of the video streams.
+ */
+public class VideoControllerTest {
+
+    private static final long LENGTH = 1000;
+
+    private static long[] parse(String header) {
+        return VideoController.parseSingleRange(Optional.ofNullable(header), LENGTH);
+    }
+
+    private static void assertRange(String header, long first, long last) {
+        long[] range = parse(header);
+        assertThat(range).isNotNull();
+        assertThat(range[0]).isEqualTo(first);
+        assertThat(range[1]).isEqualTo(last);
+    }
+
+    @Test
+    public void closedRange() {
+        assertRange("bytes=0-0", 0, 0);
+        assertRange("bytes=100-199", 100, 199);
+        assertRange(" bytes= 100 - 199 ", 100, 199);
+    }
+
+    @Test
+    public void openRange() {
+        assertRange("bytes=0-", 0, LENGTH - 1);
+        assertRange("bytes=999-", 999, LENGTH - 1);
+    }
+
+    @Test
+    public void suffixRange() {
+        assertRange("bytes=-1", LENGTH - 1, LENGTH - 1);
+        assertRange("bytes=-300", LENGTH - 300, LENGTH - 1);
+        assertRange("bytes=-5000", 0, LENGTH - 1); // Longer than the entity
+        assertThat(parse("bytes=-0")).isNull();
+    }
+
+    @Test
+    public void lastByteIsClampedToTheLength() {
+        assertRange("bytes=500-5000", 500, LENGTH - 1);
+    }
+
+    @Test
+    public void unsatisfiableRanges() {
+        assertThat(parse("bytes=1000-")).isNull();
+        assertThat(parse("bytes=1000-1200")).isNull();
+        assertThat(parse("bytes=300-200")).isNull();
+        assertThat(VideoController.parseSingleRange(Optional.of("bytes=0-"), 0)).isNull();
+    }
+
+    @Test
+    public void multipleRangesAreNotSingle() {
+        assertThat(parse("bytes=0-99,200-299")).isNull();
+        assertThat(parse("bytes=0-99, -100")).isNull();
+    }
+
+    @Test
+    public void missingOrInvalidHeaders() {
+        assertThat(parse(null)).isNull();
+        assertThat(parse("")).isNull();
+        assertThat(parse("items=0-99")).isNull();
+        assertThat(parse("bytes=")).isNull();
+        assertThat(parse("bytes=100")).isNull();
+        assertThat(parse("bytes=a-b")).isNull();
+        assertThat(parse("bytes=--5")).isNull();
+    }
+}
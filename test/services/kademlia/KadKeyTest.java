@@ -0,0 +1,111 @@
+package services.kademlia;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Checks the kad_key operations on longs against the same operations on BigInteger.
+ */
+public class KadKeyTest {
+
+    private static final int RANDOM_KEYS = 200;
+
+    /**
+     * @return Zero, all ones, single bits at the limits of the longs, keys sharing prefixes and random keys.
+     */
+    private static List<KadKey> testKeys() {
+        List<KadKey> keys = new ArrayList<>();
+        keys.add(KadKey.zero());
+
+        byte[] ones = new byte[32];
+        Arrays.fill(ones, (byte) 0xFF);
+        keys.add(KadKey.wrap(ones));
+
+        for (int i = 0; i < 32; i += 8) {
+            byte[] high = new byte[32];
+            high[i] = (byte) 0x80;
+            keys.add(KadKey.wrap(high));
+
+            byte[] low = new byte[32];
+            low[i + 7] = 1;
+            keys.add(KadKey.wrap(low));
+        }
+
+        Random random = new Random(42);
+        for (int i = 0; i < RANDOM_KEYS; i++) {
+            byte[] bytes = new byte[32];
+            random.nextBytes(bytes);
+            keys.add(KadKey.wrap(bytes));
+
+            // Same prefix, so the comparison is decided by a later long
+            byte[] similar = Arrays.copyOf(bytes, 32);
+            similar[8 + random.nextInt(24)] ^= (byte) (1 << random.nextInt(8));
+            keys.add(KadKey.wrap(similar));
+        }
+        return keys;
+    }
+
+    @Test
+    public void compareToMatchesBigInteger() {
+        List<KadKey> keys = testKeys();
+        for (KadKey a : keys) {
+            for (KadKey b : keys) {
+                int expected = a.getBigInteger().compareTo(b.getBigInteger());
+                assertThat(Integer.signum(a.compareTo(b))).isEqualTo(Integer.signum(expected));
+                assertThat(a.equals(b)).isEqualTo(expected == 0);
+            }
+        }
+    }
+
+    @Test
+    public void distanceMatchesBigInteger() {
+        List<KadKey> keys = testKeys();
+        for (KadKey a : keys) {
+            for (KadKey b : keys) {
+                int expected = a.getBigInteger().xor(b.getBigInteger()).bitLength();
+                assertThat(a.distance(b)).isEqualTo(expected);
+            }
+        }
+    }
+
+    @Test
+    public void firstSetBitIndexMatchesBigInteger() {
+        for (KadKey key : testKeys()) {
+            assertThat(key.getFirstSetBitIndex()).isEqualTo(256 - key.getBigInteger().bitLength());
+        }
+        assertThat(KadKey.zero().getFirstSetBitIndex()).isEqualTo(256);
+    }
+
+    @Test
+    public void compareDistanceMatchesBigInteger() {
+        List<KadKey> keys = testKeys();
+        Random random = new Random(7);
+        for (int i = 0; i < 50000; i++) {
+            KadKey target = keys.get(i < keys.size() ? i : random.nextInt(keys.size()));
+            KadKey a = keys.get(random.nextInt(keys.size()));
+            KadKey b = keys.get(random.nextInt(keys.size()));
+            BigInteger t = target.getBigInteger();
+            int expected = a.getBigInteger().xor(t).compareTo(b.getBigInteger().xor(t));
+            assertThat(Integer.signum(target.compareDistance(a, b))).isEqualTo(Integer.signum(expected));
+        }
+    }
+
+    @Test
+    public void shortArraysArePadded() {
+        byte[] padded = new byte[32];
+        padded[0] = 1;
+        padded[1] = 2;
+        KadKey expected = KadKey.wrap(padded);
+
+        assertThat(new KadKey(new byte[]{1, 2})).isEqualTo(expected);
+        assertThat(KadKey.wrap(new byte[]{1, 2})).isEqualTo(expected);
+        assertThat(new KadKey(new byte[]{1, 2}).compareTo(expected)).isEqualTo(0);
+    }
+}
@@ -0,0 +1,194 @@
+package services.kademlia;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.spec.IvParameterSpec;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Checks the decoding of the data received by a server connection, fed in parts of any size,
+ * and the rejection of frames and blocks that are too big.
+ */
+public class KadTCPStreamDecoderTest {
+
+    private final IvParameterSpec connectionIv = new IvParameterSpec(new byte[]{
+            1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16});
+
+    private Path incomingPath;
+    private List<KadTCPMessage> messages;
+    private List<byte[]> contents;
+
+    private final KadTCPStreamDecoder.Listener listener = new KadTCPStreamDecoder.Listener() {
+        @Override
+        public boolean acceptContent(KadTCPMessage msg) {
+            return true;
+        }
+
+        @Override
+        public void onMessage(KadTCPMessage msg, long index, Path content) throws IOException {
+            messages.add(msg);
+            contents.add(content == null ? null : Files.readAllBytes(content));
+        }
+    };
+
+    @Before
+    public void createIncomingPath() throws IOException {
+        incomingPath = Files.createTempDirectory("kad-incoming");
+        messages = new ArrayList<>();
+        contents = new ArrayList<>();
+    }
+
+    @After
+    public void deleteIncomingPath() {
+        File[] files = incomingPath.toFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        incomingPath.toFile().delete();
+    }
+
+    private static byte[] block(int size, long seed) {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    private byte[] frame(KadTCPMessage msg, long sequence, int requestId) {
+        msg.setRequestId(requestId);
+        return msg.serializeAndEncryptFrame(KadTCPMessage.deriveFrameIv(connectionIv, KadTCPMessage.DIRECTION_CLIENT, sequence));
+    }
+
+    /**
+     * @return HELLO, a READ and a STORE on a multiplexed connection.
+     */
+    private byte[] multiplexedStream(KadKey readKey, KadKey storeKey, byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(KadTCPMessage.createHelloMessage().serializeAndEncrypt(connectionIv));
+        out.write(frame(KadTCPMessage.createReadMessage(readKey), 1, 7));
+        out.write(frame(KadTCPMessage.createStoreMessage(storeKey, content), 2, 8));
+        return out.toByteArray();
+    }
+
+    private void checkMultiplexedStream(KadKey readKey, KadKey storeKey, byte[] content) {
+        assertThat(messages).hasSize(3);
+        assertThat(messages.get(0).isHello()).isTrue();
+        assertThat(messages.get(1).isRead()).isTrue();
+        assertThat(messages.get(1).getRequestId()).isEqualTo(7);
+        assertThat(messages.get(1).getRequestKey()).isEqualTo(readKey);
+        assertThat(messages.get(2).isStore()).isTrue();
+        assertThat(messages.get(2).getRequestId()).isEqualTo(8);
+        assertThat(messages.get(2).getRequestKey()).isEqualTo(storeKey);
+        assertThat(Arrays.equals(contents.get(2), content)).isTrue();
+        assertThat(incomingPath.toFile().list()).isEmpty();
+    }
+
+    @Test
+    public void decodesDataFedByteByByte() throws IOException {
+        byte[] content = block(3000, 1);
+        KadKey readKey = KadKey.random();
+        KadKey storeKey = KadKey.getKeyForBlock(KadKey.random(), content, 1);
+        byte[] stream = multiplexedStream(readKey, storeKey, content);
+
+        try (KadTCPStreamDecoder decoder = new KadTCPStreamDecoder(connectionIv, incomingPath, listener)) {
+            for (int i = 0; i < stream.length; i++) {
+                decoder.feed(stream, i, 1);
+            }
+        }
+        checkMultiplexedStream(readKey, storeKey, content);
+    }
+
+    @Test
+    public void decodesDataFedInRandomParts() throws IOException {
+        byte[] content = block(100000, 2);
+        KadKey readKey = KadKey.random();
+        KadKey storeKey = KadKey.getKeyForBlock(KadKey.random(), content, 1);
+        byte[] stream = multiplexedStream(readKey, storeKey, content);
+
+        Random random = new Random(3);
+        try (KadTCPStreamDecoder decoder = new KadTCPStreamDecoder(connectionIv, incomingPath, listener)) {
+            int offset = 0;
+            while (offset < stream.length) {
+                int n = Math.min(stream.length - offset, 1 + random.nextInt(5000));
+                decoder.feed(stream, offset, n);
+                offset += n;
+            }
+        }
+        checkMultiplexedStream(readKey, storeKey, content);
+    }
+
+    @Test
+    public void olderPeersSendASingleMessage() throws IOException {
+        KadKey key = KadKey.random();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(KadTCPMessage.createReadMessage(key).serializeAndEncrypt(connectionIv));
+        out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}); // Ignored after the message
+        byte[] stream = out.toByteArray();
+
+        try (KadTCPStreamDecoder decoder = new KadTCPStreamDecoder(connectionIv, incomingPath, listener)) {
+            decoder.feed(stream, 0, stream.length);
+        }
+        assertThat(messages).hasSize(1);
+        assertThat(messages.get(0).isRead()).isTrue();
+        assertThat(messages.get(0).getRequestKey()).isEqualTo(key);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOversizeFrames() throws IOException {
+        byte[] length = ByteBuffer.allocate(4).putInt(KadTCPMessage.MAX_MSG_SIZE + 1).array();
+        try (KadTCPStreamDecoder decoder = new KadTCPStreamDecoder(connectionIv, incomingPath, listener)) {
+            decoder.feed(length, 0, 2);
+            decoder.feed(length, 2, 2); // The length is complete here
+        }
+    }
+
+    @Test
+    public void rejectsOversizeBlocks() throws IOException {
+        long maxBlockSize = KademliaConfiguration.MAX_BLOCK_SIZE;
+        KademliaConfiguration.MAX_BLOCK_SIZE = 1000;
+        try (KadTCPStreamDecoder decoder = new KadTCPStreamDecoder(connectionIv, incomingPath, listener)) {
+            byte[] content = block(1001, 4);
+            byte[] stream = KadTCPMessage.createStoreMessage(KadKey.getKeyForBlock(KadKey.random(), content, 1), content).serializeAndEncrypt(connectionIv);
+            decoder.feed(stream, 0, stream.length);
+            throw new AssertionError("Block accepted");
+        } catch (IOException ex) {
+            assertThat(ex.getMessage()).isEqualTo("Invalid block size.");
+        } finally {
+            KademliaConfiguration.MAX_BLOCK_SIZE = maxBlockSize;
+        }
+        assertThat(messages).isEmpty();
+    }
+
+    @Test
+    public void rejectsContentNotMatchingTheKey() throws IOException {
+        byte[] content = block(5000, 5);
+        KadKey key = KadKey.getKeyForBlock(KadKey.random(), block(5000, 6), 1);
+        byte[] stream = KadTCPMessage.createStoreMessage(key, content).serializeAndEncrypt(connectionIv);
+
+        KadTCPStreamDecoder decoder = new KadTCPStreamDecoder(connectionIv, incomingPath, listener);
+        try {
+            decoder.feed(stream, 0, stream.length);
+            throw new AssertionError("Content accepted");
+        } catch (IOException ex) {
+            assertThat(ex.getMessage()).isEqualTo("The kad_key received is invalid for the content received.");
+        } finally {
+            decoder.close();
+        }
+        assertThat(messages).isEmpty();
+        assertThat(incomingPath.toFile().list()).isEmpty();
+    }
+}
@@ -0,0 +1,154 @@
+package services.kademlia;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Checks that cached lookups are shared by the keys of a region, and invalidated when the buckets
+ * they came from change, when the TTL expires or when they are invalidated explicitly.
+ */
+public class LookupCacheTest {
+
+    private static final int PREFIX_BITS = 16;
+
+    private static final Node LOCAL = new Node("10.0.0.1", 4000);
+
+    private static KadKey key(int prefix, int rest) {
+        byte[] bytes = new byte[32];
+        bytes[0] = (byte) (prefix >> 8);
+        bytes[1] = (byte) prefix;
+        bytes[31] = (byte) rest;
+        return KadKey.wrap(bytes);
+    }
+
+    private static List<Node> nodes() {
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 2; i <= 11; i++) {
+            nodes.add(new Node("10.0.0." + i, 4000));
+        }
+        return nodes;
+    }
+
+    private static RoutingTable table(List<Node> nodes) {
+        RoutingTable table = new RoutingTable(LOCAL);
+        for (Node node : nodes) {
+            table.insert(node, 1);
+        }
+        return table;
+    }
+
+    private static List<Node> sortedFor(KadKey key, List<Node> nodes) {
+        List<Node> sorted = new ArrayList<>(nodes);
+        sorted.sort(new DistanceComparator(key));
+        return sorted;
+    }
+
+    /**
+     * @return A node that is not in the table, in one of the buckets of the result or not.
+     */
+    private static Node newNode(RoutingTable table, KadKey key, List<Node> nodes, boolean sameBuckets) {
+        Set<Integer> bucketIds = new HashSet<>();
+        bucketIds.add(table.getBucketId(key));
+        for (Node node : nodes) {
+            bucketIds.add(table.getBucketId(node.getIdentifier()));
+        }
+        for (int i = 0; ; i++) {
+            Node node = new Node("10.1." + (i / 256) + "." + (i % 256), 4000);
+            if (bucketIds.contains(table.getBucketId(node.getIdentifier())) == sameBuckets) {
+                return node;
+            }
+        }
+    }
+
+    @Test
+    public void keysOfTheSameRegionShareTheLookup() {
+        LookupCache cache = new LookupCache(100, 60000, PREFIX_BITS);
+        RoutingTable table = table(nodes());
+        KadKey looked = key(0x1234, 1);
+        List<Node> nodes = sortedFor(looked, nodes());
+        cache.put(looked, table, nodes);
+
+        assertThat(cache.get(looked, table)).isEqualTo(nodes);
+
+        // Other key of the region: the same nodes, sorted by distance to it
+        KadKey other = KadKey.wrap(new byte[]{0x12, 0x34, (byte) 0xFF, 0x55, 1, 2, 3, 4});
+        assertThat(cache.get(other, table)).isEqualTo(sortedFor(other, nodes));
+
+        // Other region
+        assertThat(cache.get(key(0x1235, 1), table)).isNull();
+    }
+
+    @Test
+    public void bucketChangeInvalidates() {
+        LookupCache cache = new LookupCache(100, 60000, PREFIX_BITS);
+        List<Node> nodes = nodes();
+        RoutingTable table = table(nodes);
+        KadKey key = key(0xABCD, 7);
+        cache.put(key, table, nodes);
+        assertThat(cache.get(key, table)).isNotNull();
+
+        table.insert(newNode(table, key, nodes, true), 2);
+        assertThat(cache.get(key, table)).isNull();
+
+        // A newer lookup replaces it
+        cache.put(key, table, nodes);
+        assertThat(cache.get(key, table)).isNotNull();
+    }
+
+    @Test
+    public void otherBucketsDoNotInvalidate() {
+        LookupCache cache = new LookupCache(100, 60000, PREFIX_BITS);
+        List<Node> nodes = nodes();
+        RoutingTable table = table(nodes);
+        KadKey key = key(0xABCD, 7);
+        cache.put(key, table, nodes);
+
+        table.insert(newNode(table, key, nodes, false), 2);
+        assertThat(cache.get(key, table)).isNotNull();
+
+        // Seen again, or unresponsive without a replacement: the contacts do not change
+        table.insert(nodes.get(0), 3);
+        table.setUnresponsiveContact(nodes.get(1));
+        assertThat(cache.get(key, table)).isNotNull();
+    }
+
+    @Test
+    public void ttlExpiryInvalidates() throws InterruptedException {
+        LookupCache cache = new LookupCache(100, 50, PREFIX_BITS);
+        RoutingTable table = table(nodes());
+        KadKey key = key(0x0F0F, 3);
+        cache.put(key, table, nodes());
+        assertThat(cache.get(key, table)).isNotNull();
+
+        Thread.sleep(150);
+        assertThat(cache.get(key, table)).isNull();
+    }
+
+    @Test
+    public void explicitInvalidation() {
+        LookupCache cache = new LookupCache(100, 60000, PREFIX_BITS);
+        RoutingTable table = table(nodes());
+        KadKey key = key(0x4242, 9);
+        cache.put(key, table, nodes());
+
+        assertThat(cache.invalidate(key(0x4242, 10))).isTrue(); // Any key of the region
+        assertThat(cache.get(key, table)).isNull();
+        assertThat(cache.invalidate(key)).isFalse();
+    }
+
+    @Test
+    public void emptyResultsAreNotCached() {
+        LookupCache cache = new LookupCache(100, 60000, PREFIX_BITS);
+        RoutingTable table = table(nodes());
+        KadKey key = key(0x0001, 1);
+        cache.put(key, table, Collections.<Node>emptyList());
+        assertThat(cache.get(key, table)).isNull();
+    }
+}
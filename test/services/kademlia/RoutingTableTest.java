@@ -0,0 +1,76 @@
+package services.kademlia;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Checks that findClosest, which only sorts the buckets it visits, returns the same nodes in the
+ * same order as sorting the entire routing table.
+ */
+public class RoutingTableTest {
+
+    private static final int NODES = 20000;
+
+    private static final Node LOCAL = new Node("10.0.0.1", 4000);
+
+    private static RoutingTable randomTable(Random random) {
+        RoutingTable table = new RoutingTable(LOCAL);
+        for (int i = 0; i < NODES; i++) {
+            table.insert(new Node("10." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256), 1024 + random.nextInt(60000)), i);
+        }
+        return table;
+    }
+
+    private static List<Node> sortedClosest(RoutingTable table, KadKey target, int count) {
+        List<Node> all = table.getAllNodes();
+        all.sort(new DistanceComparator(target));
+        return new ArrayList<>(all.subList(0, Math.min(count, all.size())));
+    }
+
+    private static void checkTarget(RoutingTable table, KadKey target) {
+        for (int count : new int[]{1, 3, KademliaConfiguration.K, 20, 100, 1000}) {
+            assertThat(table.findClosest(target, count)).isEqualTo(sortedClosest(table, target, count));
+        }
+    }
+
+    @Test
+    public void findClosestMatchesFullSortForRandomTargets() {
+        Random random = new Random(11);
+        RoutingTable table = randomTable(random);
+        for (int i = 0; i < 500; i++) {
+            byte[] bytes = new byte[32];
+            random.nextBytes(bytes);
+            checkTarget(table, KadKey.wrap(bytes));
+        }
+    }
+
+    @Test
+    public void findClosestMatchesFullSortForTargetsInEveryBucket() {
+        Random random = new Random(12);
+        RoutingTable table = randomTable(random);
+        // Targets in the low buckets (close to the local node), where the lower buckets are merged
+        for (int distance = 1; distance <= 256; distance++) {
+            checkTarget(table, LOCAL.getIdentifier().generateNodeIdByDistance(distance));
+        }
+
+        // Targets that are nodes of the table, and the local node
+        for (Node node : table.getAllNodes()) {
+            checkTarget(table, node.getIdentifier());
+        }
+    }
+
+    @Test
+    public void findClosestOnSmallTable() {
+        RoutingTable table = new RoutingTable(LOCAL);
+        KadKey target = new Node("10.0.0.2", 4000).getIdentifier();
+        assertThat(table.findClosest(target, 10)).hasSize(1);
+
+        table.insert(new Node("10.0.0.3", 4000), 1);
+        checkTarget(table, target);
+    }
+}
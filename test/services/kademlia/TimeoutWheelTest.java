@@ -0,0 +1,103 @@
+package services.kademlia;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Checks that the timeouts fire after their delay, in the current round and in later rounds,
+ * and that cancelled timeouts never fire.
+ */
+public class TimeoutWheelTest {
+
+    private static final long TICK = 10;
+    private static final int WHEEL_SIZE = 8; // A round is 80 ms
+
+    private TimeoutWheel wheel;
+
+    @Before
+    public void createWheel() {
+        wheel = new TimeoutWheel(TICK, WHEEL_SIZE, Runnable::run);
+    }
+
+    @After
+    public void stopWheel() {
+        wheel.stop();
+    }
+
+    @Test
+    public void timeoutsFireAfterTheirDelay() throws InterruptedException {
+        long[] delays = {1, 25, 79, 80, 95, 250, 400};
+        Map<Long, Long> elapsed = new ConcurrentHashMap<>();
+        CountDownLatch latch = new CountDownLatch(delays.length);
+
+        long start = System.currentTimeMillis();
+        for (long delay : delays) {
+            wheel.schedule(() -> {
+                elapsed.put(delay, System.currentTimeMillis() - start);
+                latch.countDown();
+            }, delay);
+        }
+
+        assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+        for (long delay : delays) {
+            // Never before the delay, up to a tick late (plus some margin for the scheduler)
+            long fired = elapsed.get(delay);
+            assertThat(fired).isGreaterThanOrEqualTo(delay);
+            assertThat(fired).isLessThan(delay + 2 * TICK + 100);
+        }
+        assertThat(wheel.getPendingCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void cancelledTimeoutsNeverFire() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        CountDownLatch control = new CountDownLatch(1);
+
+        TimeoutWheel.Timeout sameRound = wheel.schedule(fired::countDown, 50);
+        TimeoutWheel.Timeout laterRound = wheel.schedule(fired::countDown, 200);
+        wheel.schedule(control::countDown, 300);
+        assertThat(wheel.getPendingCount()).isEqualTo(3);
+
+        Thread.sleep(20); // Already placed in the wheel
+        assertThat(sameRound.cancel()).isTrue();
+        assertThat(laterRound.cancel()).isTrue();
+        assertThat(sameRound.cancel()).isTrue(); // Cancelling twice is fine
+        assertThat(wheel.getPendingCount()).isEqualTo(1);
+
+        assertThat(control.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(fired.getCount()).isEqualTo(1L);
+        assertThat(wheel.getPendingCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void cancelBeforePlacedInTheWheel() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        TimeoutWheel.Timeout timeout = wheel.schedule(fired::countDown, 1);
+        assertThat(timeout.cancel()).isTrue();
+        assertThat(fired.await(100, TimeUnit.MILLISECONDS)).isFalse();
+    }
+
+    @Test
+    public void cancelAfterExpiryFails() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        TimeoutWheel.Timeout timeout = wheel.schedule(fired::countDown, 15);
+        assertThat(fired.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(timeout.cancel()).isFalse();
+    }
+
+    @Test
+    public void stoppedWheelDoesNotFire() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        wheel.schedule(fired::countDown, 30);
+        wheel.stop();
+        assertThat(fired.await(100, TimeUnit.MILLISECONDS)).isFalse();
+    }
+}